@@ -3,33 +3,41 @@ package work.lclpnet.archivepart;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Help.Visibility;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
+import work.lclpnet.archivepart.checksum.ChecksumAlgorithm;
+import work.lclpnet.archivepart.crypto.EncryptionMode;
 import work.lclpnet.archivepart.factory.APBuilder;
 import work.lclpnet.archivepart.factory.APParser;
+import work.lclpnet.archivepart.io.DurabilityMode;
 import work.lclpnet.archivepart.model.APParseException;
 import work.lclpnet.archivepart.model.ArchiveEntry;
 import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.ArchiveSynchronizer;
+import work.lclpnet.archivepart.model.ArchiveWatcher;
+import work.lclpnet.archivepart.model.DirectoryScanner;
 
 @Command(name = "java -jar ArchivePart.jar", mixinStandardHelpOptions = true, version = "ArchivePart 2.1", description = "Main command for archive part.")
 public class ArchivePart implements Callable<Integer>{
 
-	public static final int VERSION = 3;
+	public static final int VERSION = 9;
+	/** The maximum part size of new archives in MB, if none is specified. */
+	private static final int DEFAULT_MAX_PART_SIZE = 500;
 	private static ArchivePart instance = null;
 
 	public static void main(String[] args) {
@@ -56,6 +64,21 @@ public class ArchivePart implements Callable<Integer>{
 		return false;
 	}
 
+	/**
+	 * Moves a file to another path, replacing the file there. The file is moved atomically, if the file system supports it.
+	 * 
+	 * @param source The file to move.
+	 * @param target The file to replace.
+	 * @throws IOException If the file could not be moved.
+	 */
+	public static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	private static boolean deleteSingle(File file) {
 		if (!file.delete()) {
 			System.err.println("Unable to delete file \"" + file.getAbsolutePath() + "\".");
@@ -83,8 +106,8 @@ public class ArchivePart implements Callable<Integer>{
 	@Option(names = {"-o", "--output"}, description = "The output file to invoke with the specified action.")
 	File output = null;
 
-	@Option(names = {"-mps", "--max-part-size"}, description = "The maximum file size of a part, in MB.", showDefaultValue = Visibility.ALWAYS)
-	Integer maxPartSize = 500;
+	@Option(names = {"-mps", "--max-part-size"}, description = "The maximum file size of a part, in MB. Used by the build action (default: " + DEFAULT_MAX_PART_SIZE + ") and required by the resize action, which re-slices the existing parts to this size.")
+	Integer maxPartSize = null;
 
 	@Option(names = {"-p", "--password"}, description = "Optional password to encrypt the file.")
 	String password = null;
@@ -101,15 +124,66 @@ public class ArchivePart implements Callable<Integer>{
 	@Option(names = {"--dir-mode"}, description = "Only used by the add action. If set and the input file is a directory, it will add the whole folder to the root instead of just the contents (false).")
 	boolean dirMode = false;
 
-	@Option(names = {"-l", "--list"}, description = "Use list mode.")
+	@Option(names = {"-l", "--list"}, description = "Use list mode. If the option --path is also set, the analyse action only lists the contents of that directory.")
 	boolean listMode = false;
 
 	@Option(names = {"--prefix", "--prefix-mode"}, description = "If set, and the option --path is also set, the path will be interpreted as prefix.")
 	boolean prefixMode = false;
 
+	@Option(names = {"--glob", "--glob-mode"}, description = "If set, and the option --path is also set, the path will be interpreted as glob pattern, e.g. \"/images/**.png\".")
+	boolean globMode = false;
+
+	@Option(names = {"-t", "--threads"}, description = "Number of worker threads used by the build action to read, checksum and encrypt files concurrently, by the build, add and sync actions to walk the directory, by the sync action to hash files concurrently, and by the repack and resize actions to write parts concurrently.", showDefaultValue = Visibility.ALWAYS)
+	int threads = 1;
+
+	@Option(names = {"--encryption"}, description = "Encryption mode used by the build action, if a password is set. Available: [${COMPLETION-CANDIDATES}]", showDefaultValue = Visibility.ALWAYS)
+	EncryptionMode encryptionMode = EncryptionMode.XOR;
+
+	@Option(names = {"--checksum"}, description = "Checksum algorithm used by the build action. Available: [${COMPLETION-CANDIDATES}]", showDefaultValue = Visibility.ALWAYS)
+	ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.CRC32;
+
+	@Option(names = {"--lazy-deletion"}, description = "Enables the lazy deletion mode of the archive, which is stored in the archive. Used by the build, add, remove and sync actions. Removed entries are only marked as free space, which is reused by new entries, instead of compacting the part files.")
+	boolean lazyDeletion = false;
+
+	@Option(names = {"--journal"}, description = "Enables the journaled header mode for the add, remove and sync actions. Modifications are appended to a journal next to the header, which is only written completely after this many journal records (0 = disabled).", showDefaultValue = Visibility.ALWAYS)
+	int journal = 0;
+
+	@Option(names = {"--journal-max-size"}, description = "The maximum size of the journal in MB, after which the header is written completely.", showDefaultValue = Visibility.ALWAYS)
+	int journalMaxSize = 16;
+
+	@Option(names = {"--durability"}, description = "When the modified part files and the header are forced to the storage device. Used by the build, add, remove and sync actions. Available: [${COMPLETION-CANDIDATES}]", showDefaultValue = Visibility.ALWAYS)
+	DurabilityMode durability = DurabilityMode.NONE;
+
+	@Option(names = {"--group-commit-size"}, description = "The number of operations which are forced together in the group commit durability mode.", showDefaultValue = Visibility.ALWAYS)
+	int groupCommitSize = 64;
+
+	@Option(names = {"--group-commit-interval"}, description = "The time in milliseconds after which the collected operations are forced in the group commit durability mode.", showDefaultValue = Visibility.ALWAYS)
+	long groupCommitInterval = 1000L;
+
+	@Option(names = {"--compact-entries"}, description = "Keeps the entries of the parsed archive in compact columns instead of one object per entry, which needs far less memory for archives with millions of entries.")
+	boolean compactEntries = false;
+
+	@Option(names = {"--threshold"}, description = "Used by the repack action. Parts of which at least this share, from 0 to 1, does not belong to any entry are rewritten.", showDefaultValue = Visibility.ALWAYS)
+	double threshold = 0.25D;
+
 	@Option(names = {"--strict"}, description = "Enables strict mode. Used by the SYNC action to indicate that entries in the archive part which are not present in the specified directory should be removed.", showDefaultValue = Visibility.ALWAYS)
 	boolean strict = false;
 
+	@Option(names = {"--watch"}, description = "Used by the sync action. Keeps running after the sync and applies the changes of the input directory as they happen, until the program is stopped.")
+	boolean watch = false;
+
+	@Option(names = {"--debounce"}, description = "Used by the sync action in watch mode. The time in milliseconds without changes, after which the collected changes are applied.", showDefaultValue = Visibility.ALWAYS)
+	long debounce = 500L;
+
+	@Option(names = {"--paranoid"}, description = "Used by the sync action. Compares the checksum of every file, instead of treating files with the same size and modification time as the entry as unchanged.", showDefaultValue = Visibility.ALWAYS)
+	boolean paranoid = false;
+
+	@Option(names = {"--include"}, description = "Used by the build, add and sync actions. Only files whose path inside the archive matches one of these globs are used, e.g. \"/images/**.png\". Can be specified multiple times.")
+	List<String> includes = new ArrayList<>();
+
+	@Option(names = {"--exclude"}, description = "Used by the build, add and sync actions. Files and directories whose path inside the archive matches one of these globs are skipped, e.g. \"**.tmp\" or \"/build/**\". Can be specified multiple times.")
+	List<String> excludes = new ArrayList<>();
+
 	@Override
 	public Integer call() throws Exception {
 		switch (action) {
@@ -120,6 +194,8 @@ public class ArchivePart implements Callable<Integer>{
 		case REMOVE: return remove();
 		case ANALYSE: return analyse();
 		case SYNC: return sync();
+		case REPACK: return repack();
+		case RESIZE: return resize();
 
 		default:
 			return -1;
@@ -136,38 +212,44 @@ public class ArchivePart implements Callable<Integer>{
 
 		if(input.getName().equals(".")) input = input.getAbsoluteFile().getParentFile();
 
-		try {
-			ArchivePartFile apf = new APParser(output)
-					.setPassword(password)
-					.parse();
+		try (ArchivePartFile apf = new APParser(output)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
 
 			if(apf == null) return 1;
 
+			if(lazyDeletion) apf.setLazyDeletion(true);
+			if(journal > 0) apf.setJournal(journal, journalMaxSize * (long) Math.pow(1024D, 2D));
+			apf.setDurability(durability, groupCommitSize, groupCommitInterval);
 			printInfo(apf);
 
 			log("Syncronizing the archive with \"" + input.getAbsolutePath() + "\"...");
-
-			recursiveSync(input, input.getAbsolutePath(), apf);
-			
-			if(strict) {
-				List<ArchiveEntry> remove = new ArrayList<>();
-				apf.getEntries().forEach(ae -> {
-					File rel = new File(input.getAbsoluteFile(), ae.getFile().substring(1));
-					if(rel.exists()) return;
-					
-					remove.add(ae);
-				});
-				remove.forEach(apf::removeEntry);
-				removed = remove.size();
+			//the files of the archive itself, including its journal and the backups of a rewrite, are skipped, if it is inside the directory
+			//the files of the archive itself are skipped, if it is inside the directory
+			final boolean insideMode = output.getAbsolutePath().startsWith(input.getAbsolutePath());
+			final File outputFolder = output.getAbsoluteFile().getParentFile();
+			final Pattern p = Pattern.compile(Pattern.quote(FilenameUtils.getBaseName(apf.getBaseName())) + "(\\.[0-9]+)?\\." + Pattern.quote(apf.getExtension()) + "(\\.tmp|\\.journal|\\.rewrite|\\.bak)?");
+
+			ArchiveSynchronizer synchronizer = new ArchiveSynchronizer(apf, input)
+					.setThreads(threads)
+					.setStrict(strict)
+					.setParanoid(paranoid)
+					.setFilter(f -> !(insideMode && outputFolder.equals(f.getAbsoluteFile().getParentFile()) && p.matcher(f.getName()).matches()));
+			addFilters(synchronizer.getScanner());
+
+			if(watch) return watch(synchronizer);
+
+			ArchiveSynchronizer.ChangeSet changes = synchronizer.scan();
+			printChanges(changes);
+
+			if(!synchronizer.apply(changes)) {
+				System.err.println("Could not save the changes to the archive.");
+				return 1;
 			}
 			
 			if(updated <= 0 && added <= 0 && removed <= 0) System.out.println("\nNo changes detected.");
-			else {
-				System.out.println("\nSummary:");
-				if(added > 0) System.out.println("Added " + added + " file" + (added != 1 ? "s" : "") + " to the archive.");
-				if(removed > 0) System.out.println("Removed " + removed + " file" + (removed != 1 ? "s" : "") + " from the archive.");
-				if(updated > 0) System.out.println("Updated " + updated + " " + (updated != 1 ? "entries" : "entry") + " in the archive.");
-			}
+			else printSummary();
 
 			return 0;
 		} catch (IOException e) {
@@ -176,39 +258,51 @@ public class ArchivePart implements Callable<Integer>{
 		}
 	}
 
-	private void recursiveSync(File parent, String rootPath, ArchivePartFile apf) throws IOException {
-		File[] children = parent.listFiles();
-		if(children == null) return;
+	private Integer watch(ArchiveSynchronizer synchronizer) throws IOException {
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final ArchiveWatcher watcher = new ArchiveWatcher(synchronizer);
 
-		boolean insideMode = output.getAbsolutePath().startsWith(input.getAbsolutePath());
-		final Pattern p = Pattern.compile(FilenameUtils.getBaseName(apf.getBaseName()) + "(\\.[0-9]+)?\\." + apf.getExtension() + "(\\.tmp)?");
+		try {
+			watcher.setDebounce(debounce).setListener(changes -> {
+				printChanges(changes);
+				printSummary();
+			});
+
+			//Ctrl+C stops the watcher, the hook waits until the archive is closed
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				watcher.close();
+				try {
+					stopped.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "ArchivePart watch shutdown"));
+
+			log("Watching \"" + input.getAbsolutePath() + "\" for changes, press Ctrl+C to stop...");
+			return watcher.run() ? 0 : 1;
+		} finally {
+			watcher.close();
+			synchronizer.getArchive().close();
+			stopped.countDown();
+		}
+	}
 
-		for(File f : children) {
-			if(f.isDirectory()) {
-				recursiveSync(f, rootPath, apf);
-				continue;
-			}
+	private void printChanges(ArchiveSynchronizer.ChangeSet changes) {
+		changes.getChanged().forEach(c -> System.out.println("Entry \"" + c.getPath() + "\" has changes."));
+		changes.getAdded().forEach(c -> System.out.println("File \"" + c.getFile().getAbsolutePath() + "\" was added."));
+		changes.getRemoved().forEach(e -> System.out.println("Entry \"" + e.getFile() + "\" was removed."));
+		updated = changes.getChanged().size();
+		added = changes.getAdded().size();
+		removed = changes.getRemoved().size();
+	}
 
-			boolean sameFolder = output.getAbsoluteFile().getParentFile().getAbsolutePath().equals(f.getAbsoluteFile().getParentFile().getAbsolutePath());
-			boolean apFile = p.matcher(f.getName()).matches();
-			if(insideMode && sameFolder && apFile) continue;
-
-			String path = f.getAbsolutePath().substring(rootPath.length()).replace(File.separatorChar, '/');
-			ArchiveEntry entry = apf.getArchiveEntryByFile(path);
-			if(entry != null) {
-				long crc32 = FileUtils.checksumCRC32(f);
-				if(entry.getCrc32() == crc32) continue;
-				
-				System.out.println("Entry \"" + entry.getFile() + "\" has changes.");
-				apf.removeEntry(entry);
-				updated++;
-			} else {
-				System.out.println("File \"" + f.getAbsolutePath() + "\" was added.");
-				added++;
-			}
-			
-			apf.addToArchive(f, path);
-		}
+	private void printSummary() {
+		if(updated <= 0 && added <= 0 && removed <= 0) return;
+
+		System.out.println("\nSummary:");
+		if(added > 0) System.out.println("Added " + added + " file" + (added != 1 ? "s" : "") + " to the archive.");
+		if(removed > 0) System.out.println("Removed " + removed + " file" + (removed != 1 ? "s" : "") + " from the archive.");
+		if(updated > 0) System.out.println("Updated " + updated + " " + (updated != 1 ? "entries" : "entry") + " in the archive.");
 	}
 
 	private Integer analyse() {
@@ -221,6 +315,7 @@ public class ArchivePart implements Callable<Integer>{
 		try {
 			ArchivePartFile apf = new APParser(input)
 					.setPassword(password)
+					.setCompactEntries(compactEntries)
 					.parse();
 
 			if(apf == null) return 1;
@@ -228,8 +323,16 @@ public class ArchivePart implements Callable<Integer>{
 			printInfo(apf);
 
 			if(listMode) {
-				log("Entries:");
-				apf.getEntries().forEach(e -> log(e.toString()));
+				if(path != null && !prefixMode && !globMode) {
+					log("Contents of \"" + path + "\":");
+					apf.getChildren(path).forEach(child -> {
+						ArchiveEntry e = child.endsWith("/") ? null : apf.getArchiveEntryByFile(child);
+						log(e != null ? e.toString() : child);
+					});
+				} else {
+					log("Entries:");
+					(path != null ? selectEntries(apf) : apf.getEntries()).forEach(e -> log(e.toString()));
+				}
 			}
 
 			return 0;
@@ -247,21 +350,24 @@ public class ArchivePart implements Callable<Integer>{
 			return 1;
 		}
 
-		try {
-			ArchivePartFile apf = new APParser(input)
-					.setPassword(password)
-					.parse();
+		try (ArchivePartFile apf = new APParser(input)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
 
 			if(apf == null) return 1;
 
+			if(lazyDeletion) apf.setLazyDeletion(true);
+			if(journal > 0) apf.setJournal(journal, journalMaxSize * (long) Math.pow(1024D, 2D));
+			apf.setDurability(durability, groupCommitSize, groupCommitInterval);
 			printInfo(apf);
 
-			if(prefixMode) {
+			if(prefixMode || globMode) {
 				removeMany(apf);
 			} else {
 				ArchiveEntry e = apf.getArchiveEntryByFile(path);
 				if(e == null) {
-					if(apf.getArchiveEntriesByPrefix(path.endsWith("/") ? path : path + "/").size() > 0) {
+					if(apf.hasArchiveEntriesByPrefix(path.endsWith("/") ? path : path + "/")) {
 						prefixMode = true;
 						removeMany(apf);
 						return 0;
@@ -282,19 +388,76 @@ public class ArchivePart implements Callable<Integer>{
 		}
 	}
 
+	private List<ArchiveEntry> selectEntries(ArchivePartFile apf) {
+		return globMode ? apf.getArchiveEntriesByGlob(path) : apf.getArchiveEntriesByPrefix(path);
+	}
+
 	private void removeMany(ArchivePartFile apf) {
-		List<ArchiveEntry> entries = apf.getArchiveEntriesByPrefix(path);
+		List<ArchiveEntry> entries = selectEntries(apf);
 		removed = 0;
 
 		System.out.println("Found " + entries.size() + " entries in path \"" + path + "\", removing them...");
 
-		entries.forEach(e -> {
-			if(apf.removeEntry(e)) removed++;
-		});
+		if(apf.removeEntries(entries)) removed = entries.size();
 
 		System.out.println("Done. Removed " + removed + " files.");
 	}
 
+	private Integer repack() {
+		if(input == null) {
+			System.err.println("For the repack action you need to specify:");
+			if(input == null) System.err.println("apHeaderFile (-i, --input): The ArchivePart header file to repack.");
+			return 1;
+		}
+
+		try (ArchivePartFile apf = new APParser(input)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
+
+			if(apf == null) return 1;
+
+			printInfo(apf);
+
+			if(listMode) apf.getPartStatistics().forEach(stats -> log(stats.toString()));
+
+			boolean success = apf.repack(threshold, threads);
+
+			return success ? 0 : 1;
+		} catch (APParseException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
+	private Integer resize() {
+		if(input == null || maxPartSize == null) {
+			System.err.println("For the resize action you need to specify:");
+			if(input == null) System.err.println("apHeaderFile (-i, --input): The ArchivePart header file to resize.");
+			if(maxPartSize == null) System.err.println("maxPartSize (-mps, --max-part-size): The new maximum file size of a part, in MB.");
+			return 1;
+		}
+
+		try (ArchivePartFile apf = new APParser(input)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
+
+			if(apf == null) return 1;
+
+			printInfo(apf);
+
+			boolean success = apf.resize(maxPartSize * (long) Math.pow(1024D, 2D), threads);
+
+			if(listMode) apf.getPartStatistics().forEach(stats -> log(stats.toString()));
+
+			return success ? 0 : 1;
+		} catch (APParseException e) {
+			e.printStackTrace();
+			return 1;
+		}
+	}
+
 	private Integer add() {
 		if(input == null || output == null) {
 			System.err.println("For the add action you need to specify:");
@@ -303,13 +466,16 @@ public class ArchivePart implements Callable<Integer>{
 			return 1;
 		}
 
-		try {
-			ArchivePartFile apf = new APParser(output)
-					.setPassword(password)
-					.parse();
+		try (ArchivePartFile apf = new APParser(output)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
 
 			if(apf == null) return 1;
 
+			if(lazyDeletion) apf.setLazyDeletion(true);
+			if(journal > 0) apf.setJournal(journal, journalMaxSize * (long) Math.pow(1024D, 2D));
+			apf.setDurability(durability, groupCommitSize, groupCommitInterval);
 			printInfo(apf);
 
 			log("Adding \"" + input.getAbsolutePath() + "\" to the archive...");
@@ -318,8 +484,13 @@ public class ArchivePart implements Callable<Integer>{
 			boolean override = conflictStrategy == ConflictStrategy.OVERRIDE;
 
 			boolean success;
-			if(multiple && dirMode) success = apf.addFolderToArchive(input, override);
-			else success = path != null && !multiple ? apf.addToArchive(input, path, override) : apf.addToArchive(input, override);
+			if(multiple) {
+				DirectoryScanner scanner = new DirectoryScanner(input)
+						.setPathPrefix(dirMode ? "/" + input.getAbsoluteFile().getName() : "")
+						.setThreads(threads);
+
+				success = apf.addToArchive(addFilters(scanner), override);
+			} else success = path != null ? apf.addToArchive(input, path, override) : apf.addToArchive(input, override);
 
 			log(multiple ? "Files were " + (success ? "" : "not ") + "added successfully." : "File was " + (success ? "" : "not ") + "added successfully.");
 
@@ -338,18 +509,29 @@ public class ArchivePart implements Callable<Integer>{
 			return 1;
 		}
 
-		try {
-			ArchivePartFile apf = new APParser(input)
-					.setPassword(password)
-					.parse();
+		try (ArchivePartFile apf = new APParser(input)
+				.setPassword(password)
+				.setCompactEntries(compactEntries)
+				.parse()) {
 
 			if(apf == null) return 1;
 
 			printInfo(apf);
 
 			if(path != null) {
+				if(prefixMode || globMode) {
+					selectEntries(apf).forEach(e -> extractEntry(apf, e));
+					return 0;
+				}
+
 				ArchiveEntry e = apf.getArchiveEntryByFile(path);
 				if(e == null) {
+					String directory = path.endsWith("/") ? path : path + "/";
+					if(apf.hasArchiveEntriesByPrefix(directory)) {
+						apf.getArchiveEntriesByPrefix(directory).forEach(en -> extractEntry(apf, en));
+						return 0;
+					}
+
 					System.err.println("This ArchivePart does not contain an entry with path \"" + path + "\"!");
 					return 1;
 				}
@@ -379,8 +561,8 @@ public class ArchivePart implements Callable<Integer>{
 
 		log("Extracting " + e.getFile() + "...");
 
-		try (InputStream in = apf.getInputStream(e); OutputStream out = new FileOutputStream(f)) {
-			IOUtils.copy(in, out);
+		try (FileOutputStream out = new FileOutputStream(f)) {
+			apf.transferTo(e, out.getChannel());
 		} catch (IOException | GeneralSecurityException ex) {
 			ex.printStackTrace();
 		}
@@ -393,20 +575,38 @@ public class ArchivePart implements Callable<Integer>{
 			return 1;
 		}
 
-		ArchivePartFile apf = new APBuilder(input, output)
+		APBuilder builder = new APBuilder(input, output);
+		includes.forEach(builder::addInclude);
+		excludes.forEach(builder::addExclude);
+
+		ArchivePartFile apf = builder
 				.setPassword(password)
-				.setMaxPartSize(maxPartSize * (long) Math.pow(1024D, 2D))
+				.setMaxPartSize((maxPartSize != null ? maxPartSize : DEFAULT_MAX_PART_SIZE) * (long) Math.pow(1024D, 2D))
+				.setThreads(threads)
+				.setChecksumAlgorithm(checksumAlgorithm)
+				.setEncryptionMode(encryptionMode)
+				.setLazyDeletion(lazyDeletion)
+				.setDurabilityMode(durability)
 				.build();
 
 		return apf != null ? 0 : 1;
 	}
 
+	private DirectoryScanner addFilters(DirectoryScanner scanner) {
+		includes.forEach(scanner::addInclude);
+		excludes.forEach(scanner::addExclude);
+		return scanner;
+	}
+
 	private void printInfo(ArchivePartFile apf) {
 		log("ArchivePart parsed informations:");
-		log("Encrypted: " + (apf.getPassword() != null));
+		log("Encrypted: " + (apf.getPassword() != null ? "true (" + apf.getEncryptionMode() + ")" : "false"));
+		log("Checksum: " + apf.getChecksumAlgorithm());
 		log("Max Part Size: " + (apf.getMaxPartSize() / (long) Math.pow(1024D, 2D)) + " MB");
 		log("Part files: " + apf.getHighestPartFileNumber());
-		log("Files included: " + apf.getEntries().size());
+		log("Files included: " + apf.getEntryCount());
+		if(apf.isLazyDeletion() || !apf.getFreeSpaceMap().isEmpty()) 
+			log("Lazy deletion: " + apf.isLazyDeletion() + " (" + apf.getFreeSpaceMap().getFreeBytes() + " bytes free)");
 		if(action != APAction.ANALYSE || listMode) log("");
 	}
 
@@ -429,7 +629,9 @@ public class ArchivePart implements Callable<Integer>{
 		ADD,
 		REMOVE,
 		ANALYSE,
-		SYNC;
+		SYNC,
+		REPACK,
+		RESIZE;
 
 		@Override
 		public String toString() {
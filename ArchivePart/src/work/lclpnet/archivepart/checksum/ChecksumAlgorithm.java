@@ -0,0 +1,99 @@
+package work.lclpnet.archivepart.checksum;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms which can be used for the entries of an archive.
+ * The id of the algorithm is stored in the header.
+ */
+public enum ChecksumAlgorithm {
+
+	CRC32(1) {
+		@Override
+		public Checksum create() {
+			return new CRC32();
+		}
+	},
+	CRC32C(2) {
+		@Override
+		public Checksum create() {
+			if(INTRINSIC_CRC32C == null) return new Crc32c();
+
+			try {
+				return INTRINSIC_CRC32C.newInstance();
+			} catch (ReflectiveOperationException e) {
+				return new Crc32c();
+			}
+		}
+	},
+	XXHASH64(3) {
+		@Override
+		public Checksum create() {
+			return new XxHash64();
+		}
+	};
+
+	/** java.util.zip.CRC32C is available (and intrinsified) since Java 9. */
+	private static final Constructor<? extends Checksum> INTRINSIC_CRC32C = findConstructor("java.util.zip.CRC32C");
+
+	private final int id;
+
+	private ChecksumAlgorithm(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return A new {@link Checksum} instance of this algorithm.
+	 */
+	public abstract Checksum create();
+
+	/**
+	 * Reads the whole file once and computes its checksum.
+	 *
+	 * @param f The file to compute the checksum of.
+	 * @return The checksum value.
+	 * @throws IOException If the file could not be read.
+	 */
+	public long checksum(File f) throws IOException {
+		Checksum checksum = create();
+		byte[] buffer = new byte[8192];
+		int read;
+
+		try (InputStream in = new FileInputStream(f)) {
+			while((read = in.read(buffer)) != -1) checksum.update(buffer, 0, read);
+		}
+
+		return checksum.getValue();
+	}
+
+	public static ChecksumAlgorithm byId(int id) {
+		for(ChecksumAlgorithm algorithm : values())
+			if(algorithm.id == id) return algorithm;
+
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString().toLowerCase();
+	}
+
+	private static Constructor<? extends Checksum> findConstructor(String name) {
+		try {
+			return Class.forName(name).asSubclass(Checksum.class).getConstructor();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+package work.lclpnet.archivepart.checksum;
+
+import java.util.zip.Checksum;
+
+/**
+ * Table based CRC32C (Castagnoli) implementation, used on Java versions without java.util.zip.CRC32C.
+ */
+public class Crc32c implements Checksum {
+
+	private static final int POLYNOMIAL = 0x82F63B78;
+	private static final int[] TABLE = new int[256];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+
+			TABLE[i] = crc;
+		}
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		for (int i = off, end = off + len; i < end; i++)
+			c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+}
@@ -0,0 +1,134 @@
+package work.lclpnet.archivepart.checksum;
+
+import java.util.zip.Checksum;
+
+/**
+ * Streaming implementation of the 64 bit xxHash algorithm (seed 0).
+ */
+public class XxHash64 implements Checksum {
+
+	private static final long P1 = 0x9E3779B185EBCA87L;
+	private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long P3 = 0x165667B19E3779F9L;
+	private static final long P4 = 0x85EBCA77C2B2AE63L;
+	private static final long P5 = 0x27D4EB2F165667C5L;
+
+	private final byte[] memory = new byte[32];
+	private int memorySize;
+	private long v1, v2, v3, v4, total;
+
+	public XxHash64() {
+		reset();
+	}
+
+	@Override
+	public void update(int b) {
+		update(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		total += len;
+
+		if(memorySize + len < 32) {
+			System.arraycopy(b, off, memory, memorySize, len);
+			memorySize += len;
+			return;
+		}
+
+		final int end = off + len;
+
+		if(memorySize > 0) {
+			int fill = 32 - memorySize;
+			System.arraycopy(b, off, memory, memorySize, fill);
+			process(memory, 0);
+			off += fill;
+			memorySize = 0;
+		}
+
+		while(off + 32 <= end) {
+			process(b, off);
+			off += 32;
+		}
+
+		if(off < end) {
+			memorySize = end - off;
+			System.arraycopy(b, off, memory, 0, memorySize);
+		}
+	}
+
+	private void process(byte[] b, int off) {
+		v1 = round(v1, readLong(b, off));
+		v2 = round(v2, readLong(b, off + 8));
+		v3 = round(v3, readLong(b, off + 16));
+		v4 = round(v4, readLong(b, off + 24));
+	}
+
+	@Override
+	public long getValue() {
+		long h;
+		if(total >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else h = P5;
+
+		h += total;
+
+		int i = 0;
+		for (; i + 8 <= memorySize; i += 8) {
+			h ^= round(0L, readLong(memory, i));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+		}
+
+		if(i + 4 <= memorySize) {
+			h ^= (readInt(memory, i) & 0xFFFFFFFFL) * P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			i += 4;
+		}
+
+		for (; i < memorySize; i++) {
+			h ^= (memory[i] & 0xFF) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	@Override
+	public void reset() {
+		v1 = P1 + P2;
+		v2 = P2;
+		v3 = 0L;
+		v4 = -P1;
+		total = 0L;
+		memorySize = 0;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0L, val);
+		return acc * P1 + P4;
+	}
+
+	private static long readLong(byte[] b, int off) {
+		return (readInt(b, off) & 0xFFFFFFFFL) | ((long) readInt(b, off + 4) << 32);
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+
+}
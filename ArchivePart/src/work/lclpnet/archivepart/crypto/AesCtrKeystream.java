@@ -0,0 +1,133 @@
+package work.lclpnet.archivepart.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES in counter mode, through the JCE (which uses AES-NI where available).<br>
+ * <br>
+ * The key is derived from the password and a per-archive salt with PBKDF2.
+ * The counter block of a stream is <code>nonce || position / 16</code>, so any position can be decrypted directly
+ * and separate blocks can be processed by different threads. Every entry gets its own random nonce,
+ * which means entries can be moved inside the part files without being re-encrypted.
+ */
+public class AesCtrKeystream implements StreamCipher {
+
+	public static final int SALT_LENGTH = 16;
+	private static final int KEY_LENGTH = 256;
+	private static final int ITERATIONS = 65536;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final SecretKey key;
+	private final ThreadLocal<CipherState> ciphers = new ThreadLocal<>();
+
+	public AesCtrKeystream(String password, byte[] salt) throws GeneralSecurityException {
+		if(password == null || password.length() <= 0) throw new IllegalArgumentException("Password must not be null or empty.");
+		if(salt == null || salt.length <= 0) throw new IllegalArgumentException("Salt must not be null or empty.");
+
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
+		try {
+			this.key = new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+		} finally {
+			spec.clearPassword();
+		}
+
+		init(0L, 0L); // fail early, if AES/CTR is not available
+	}
+
+	@Override
+	public void apply(byte[] b, int off, int len, long nonce, long position) {
+		if(len <= 0) return;
+
+		try {
+			CipherState state = init(nonce, position);
+			state.cipher.update(b, off, len, b, off);
+			state.continueAt(nonce, position + len);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-CTR transformation failed.", e);
+		}
+	}
+
+	@Override
+	public void apply(ByteBuffer buf, long nonce, long position) {
+		if(buf.hasArray()) {
+			apply(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), nonce, position);
+			return;
+		}
+		if(!buf.hasRemaining()) return;
+
+		try {
+			CipherState state = init(nonce, position);
+			state.cipher.update(buf.duplicate(), buf.duplicate());
+			state.continueAt(nonce, position + buf.remaining());
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-CTR transformation failed.", e);
+		}
+	}
+
+	/**
+	 * Prepares the cipher of the current thread for a position. A cipher which stopped exactly there continues
+	 * its keystream, only a discontiguous position initializes a new counter block.
+	 * Until {@link CipherState#continueAt(long, long)} is called, the cipher is not continued by the next call.
+	 */
+	private CipherState init(long nonce, long position) throws GeneralSecurityException {
+		CipherState state = ciphers.get();
+		if(state == null) {
+			state = new CipherState(Cipher.getInstance("AES/CTR/NoPadding"));
+			ciphers.set(state);
+		}
+
+		boolean contiguous = state.valid && state.nonce == nonce && state.position == position;
+		state.valid = false;
+		if(contiguous) return state;
+
+		ByteBuffer.wrap(state.iv).putLong(0, nonce).putLong(8, position >>> 4);
+		state.cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(state.iv));
+
+		int skip = (int) (position & 15);
+		if(skip > 0) state.cipher.update(state.skip, 0, skip, state.skip, 0);
+
+		return state;
+	}
+
+	@Override
+	public long newNonce() {
+		return RANDOM.nextLong();
+	}
+
+	public static byte[] newSalt() {
+		byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		return salt;
+	}
+
+	/** The cipher of a thread and the position in the stream it continues at. */
+	private static class CipherState {
+
+		private final Cipher cipher;
+		private final byte[] iv = new byte[16], skip = new byte[16];
+		private boolean valid = false;
+		private long nonce, position;
+
+		private CipherState(Cipher cipher) {
+			this.cipher = cipher;
+		}
+
+		private void continueAt(long nonce, long position) {
+			this.nonce = nonce;
+			this.position = position;
+			this.valid = true;
+		}
+
+	}
+
+}
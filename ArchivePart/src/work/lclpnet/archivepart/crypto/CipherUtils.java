@@ -1,8 +1,5 @@
 package work.lclpnet.archivepart.crypto;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
 public class CipherUtils {
 
 	/*public static Cipher getAESEncryptCipher(final String key) throws GeneralSecurityException {
@@ -30,17 +27,7 @@ public class CipherUtils {
 	public static byte[] translate(byte[] input, String secretCode) {
 		if(secretCode == null) return input;
 		
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		XorOutputStream xOut = new XorOutputStream(out, secretCode);
-
-		try {
-			xOut.write(input);
-			xOut.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return out.toByteArray();
+		return new XorKeystream(secretCode).translate(input);
 	}
 
 }
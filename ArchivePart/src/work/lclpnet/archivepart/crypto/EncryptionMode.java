@@ -0,0 +1,33 @@
+package work.lclpnet.archivepart.crypto;
+
+/**
+ * The encryption modes of an encrypted archive. The id of the mode is stored in the header since version 5.
+ */
+public enum EncryptionMode {
+
+	XOR(1),
+	AES_CTR(2);
+
+	private final int id;
+
+	private EncryptionMode(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public static EncryptionMode byId(int id) {
+		for(EncryptionMode mode : values())
+			if(mode.id == id) return mode;
+
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString().toLowerCase();
+	}
+
+}
@@ -0,0 +1,36 @@
+package work.lclpnet.archivepart.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A seekable cipher which transforms data in place by XORing it with a keystream.
+ * Encryption and decryption are the same operation.
+ */
+public interface StreamCipher {
+
+	/**
+	 * XORs a range of a byte array in place.
+	 *
+	 * @param b The data.
+	 * @param off The start of the range inside the array.
+	 * @param len The length of the range.
+	 * @param nonce The nonce of the stream, see {@link #newNonce()}.
+	 * @param position The position of <code>b[off]</code> inside the stream.
+	 */
+	void apply(byte[] b, int off, int len, long nonce, long position);
+
+	/**
+	 * XORs the remaining bytes of a buffer in place. The position and limit of the buffer are not changed.
+	 *
+	 * @param buf The data, from its position to its limit.
+	 * @param nonce The nonce of the stream, see {@link #newNonce()}.
+	 * @param position The position of the first remaining byte inside the stream.
+	 */
+	void apply(ByteBuffer buf, long nonce, long position);
+
+	/**
+	 * @return A nonce for a new stream, e.g. a new entry.
+	 */
+	long newNonce();
+
+}
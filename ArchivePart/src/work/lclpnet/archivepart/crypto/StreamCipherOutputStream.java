@@ -0,0 +1,75 @@
+package work.lclpnet.archivepart.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encrypts the written data with a {@link StreamCipher}. The data is collected in a buffer,
+ * which is encrypted as a whole and written when it is full or the stream is flushed.
+ */
+public class StreamCipherOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final StreamCipher cipher;
+	private final long nonce;
+	private long position;
+	private final byte[] buffer;
+	private int count = 0;
+
+	/**
+	 * @param out The stream to write the encrypted data to.
+	 * @param cipher The cipher.
+	 * @param nonce The nonce of the cipher stream.
+	 * @param position The position of the first written byte inside the cipher stream.
+	 * @param bufferSize The size of the blocks which are encrypted at once.
+	 */
+	public StreamCipherOutputStream(OutputStream out, StreamCipher cipher, long nonce, long position, int bufferSize) {
+		this.out = out;
+		this.cipher = cipher;
+		this.nonce = nonce;
+		this.position = position;
+		this.buffer = new byte[bufferSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(count >= buffer.length) flushBuffer();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(count >= buffer.length) flushBuffer();
+
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count <= 0) return;
+
+		cipher.apply(buffer, 0, count, nonce, position);
+		out.write(buffer, 0, count);
+
+		position += count;
+		count = 0;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushBuffer();
+		out.close();
+	}
+
+}
@@ -6,14 +6,16 @@ import java.io.InputStream;
 public class XorInputStream extends InputStream{
 
 	private InputStream in;
-	private char[] password;
-	private int i = 0;
+	private XorKeystream keystream;
+	private long position = 0L;
 	
 	public XorInputStream(InputStream in, String password) {
-		if(password == null || password.length() <= 0) throw new IllegalArgumentException("Password must not be null or empty.");
-		
+		this(in, new XorKeystream(password));
+	}
+	
+	public XorInputStream(InputStream in, XorKeystream keystream) {
 		this.in = in;
-		this.password = password.toCharArray();
+		this.keystream = keystream;
 	}
 	
 	@Override
@@ -21,8 +23,22 @@ public class XorInputStream extends InputStream{
 		int read = in.read();
 		if(read == -1) return -1;
 		
-		if(i >= password.length) i = 0;
-		return read ^ password[i++];
+		return (read ^ keystream.keyAt(position++)) & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if(read <= 0) return read;
+		
+		keystream.apply(b, off, read, position);
+		position += read;
+		return read;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		in.close();
 	}
 
 }
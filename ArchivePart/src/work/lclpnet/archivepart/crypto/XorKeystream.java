@@ -0,0 +1,140 @@
+package work.lclpnet.archivepart.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The repeating-key XOR keystream used by encrypted archives.<br>
+ * <br>
+ * The byte at keystream position <code>p</code> is the lower byte of <code>password.charAt(p % password.length())</code>.
+ * Ranges are transformed in place, eight bytes at a time, starting at any absolute position.
+ * Instances are immutable and can be shared between threads. The nonce is ignored, every stream uses the same keystream.
+ */
+public class XorKeystream implements StreamCipher {
+
+	private static final int WINDOW = 8192;
+	/** The last array transformed by the thread, viewed as native longs. Callers reuse their arrays, so it is rarely wrapped again. */
+	private static final ThreadLocal<ByteBuffer> DATA_VIEW = new ThreadLocal<>();
+
+	private final int keyLength;
+	/** The key, repeated to cover any window starting inside the first repetition. */
+	private final byte[] stream;
+	private final ByteBuffer streamView;
+
+	public XorKeystream(String password) {
+		if(password == null || password.length() <= 0) throw new IllegalArgumentException("Password must not be null or empty.");
+
+		this.keyLength = password.length();
+		this.stream = new byte[keyLength + WINDOW];
+		for (int i = 0; i < stream.length; i++)
+			stream[i] = (byte) password.charAt(i % keyLength);
+
+		this.streamView = ByteBuffer.wrap(stream).order(ByteOrder.nativeOrder());
+	}
+
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * @param position The absolute keystream position.
+	 * @return The key byte at that position.
+	 */
+	public byte keyAt(long position) {
+		return stream[(int) (position % keyLength)];
+	}
+
+	/**
+	 * XORs a range of a byte array in place.
+	 *
+	 * @param b The data.
+	 * @param off The start of the range inside the array.
+	 * @param len The length of the range.
+	 * @param position The keystream position of <code>b[off]</code>.
+	 */
+	public void apply(byte[] b, int off, int len, long position) {
+		ByteBuffer data = DATA_VIEW.get();
+		if(data == null || data.array() != b) {
+			data = ByteBuffer.wrap(b).order(ByteOrder.nativeOrder());
+			DATA_VIEW.set(data);
+		}
+
+		int k = (int) (position % keyLength);
+		int i = off;
+		final int end = off + len;
+
+		while(i < end) {
+			final int blockEnd = i + Math.min(end - i, WINDOW);
+			int j = k;
+
+			for (; i + 8 <= blockEnd; i += 8, j += 8)
+				data.putLong(i, data.getLong(i) ^ streamView.getLong(j));
+
+			for (; i < blockEnd; i++, j++)
+				b[i] ^= stream[j];
+
+			k = j % keyLength;
+		}
+	}
+
+	/**
+	 * XORs the remaining bytes of a buffer in place. The position and limit of the buffer are not changed.
+	 *
+	 * @param buf The data, from its position to its limit.
+	 * @param position The keystream position of the first remaining byte.
+	 */
+	public void apply(ByteBuffer buf, long position) {
+		if(buf.hasArray()) {
+			apply(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), position);
+			return;
+		}
+
+		ByteOrder order = buf.order();
+		buf.order(ByteOrder.nativeOrder());
+
+		int k = (int) (position % keyLength);
+		int i = buf.position();
+		final int end = buf.limit();
+
+		while(i < end) {
+			final int blockEnd = i + Math.min(end - i, WINDOW);
+			int j = k;
+
+			for (; i + 8 <= blockEnd; i += 8, j += 8)
+				buf.putLong(i, buf.getLong(i) ^ streamView.getLong(j));
+
+			for (; i < blockEnd; i++, j++)
+				buf.put(i, (byte) (buf.get(i) ^ stream[j]));
+
+			k = j % keyLength;
+		}
+
+		buf.order(order);
+	}
+
+	@Override
+	public void apply(byte[] b, int off, int len, long nonce, long position) {
+		apply(b, off, len, position);
+	}
+
+	@Override
+	public void apply(ByteBuffer buf, long nonce, long position) {
+		apply(buf, position);
+	}
+
+	@Override
+	public long newNonce() {
+		return 0L;
+	}
+
+	/**
+	 * @param input The data to transform.
+	 * @return A transformed copy of the data, starting at keystream position 0.
+	 */
+	public byte[] translate(byte[] input) {
+		byte[] output = input.clone();
+		apply(output, 0, output.length, 0L);
+		return output;
+	}
+
+}
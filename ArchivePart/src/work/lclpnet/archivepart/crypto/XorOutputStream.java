@@ -6,20 +6,46 @@ import java.io.OutputStream;
 public class XorOutputStream extends OutputStream{
 
 	private OutputStream out;
-	private char[] password;
-	private int i = 0;
+	private XorKeystream keystream;
+	private long position = 0L;
+	private byte[] buffer = new byte[8192];
 	
 	public XorOutputStream(OutputStream out, String password) {
-		if(password == null || password.length() <= 0) throw new IllegalArgumentException("Password must not be null or empty.");
-		
+		this(out, new XorKeystream(password));
+	}
+	
+	public XorOutputStream(OutputStream out, XorKeystream keystream) {
 		this.out = out;
-		this.password = password.toCharArray();
+		this.keystream = keystream;
 	}
 	
 	@Override
 	public void write(int b) throws IOException {
-		if(i >= password.length) i = 0;
-		out.write(b ^ password[i++]);
+		out.write(b ^ keystream.keyAt(position++));
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = Math.min(len, buffer.length);
+			System.arraycopy(b, off, buffer, 0, n);
+			keystream.apply(buffer, 0, n, position);
+			out.write(buffer, 0, n);
+			
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		out.close();
 	}
 
 }
@@ -0,0 +1,279 @@
+package work.lclpnet.archivepart.factory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Checksum;
+
+import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.io.ChannelUtils;
+import work.lclpnet.archivepart.model.ArchiveEntry;
+import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.DirectoryScanner;
+import work.lclpnet.archivepart.model.ScannedFile;
+
+/**
+ * Builds the parts of an archive with a pool of workers, which read, checksum and encrypt the files concurrently.
+ * A single writer appends the results to the part files in the same order a sequential build would,
+ * so the resulting parts and header are identical. Without encryption, the workers only compute the checksums and the writer transfers the files directly.
+ */
+public class APBuildPipeline {
+
+	private static final int CHUNK_SIZE = 1024 * 1024; //1MB
+	private static final int QUEUE_CAPACITY = 4;
+	private static final byte[] END = new byte[0];
+
+	private final ArchivePartFile apFile;
+	private final int threads;
+	private final List<Job> jobs = new ArrayList<>();
+	private final List<Long> partLengths = new ArrayList<>();
+	private final ConcurrentLinkedQueue<byte[]> spareBuffers = new ConcurrentLinkedQueue<>();
+	private int highestPart = 1;
+
+	public APBuildPipeline(ArchivePartFile apFile, int threads) {
+		if(threads < 1) throw new IllegalArgumentException("The pipeline needs at least one worker thread.");
+		this.apFile = apFile;
+		this.threads = threads;
+	}
+
+	/**
+	 * Assigns part and offset to a file, using the same first-fit strategy as {@link ArchivePartFile#addToArchive(File, String)}.
+	 *
+	 * @param f The file to add.
+	 * @param path The path inside the archive.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public void plan(File f, String path) throws GeneralSecurityException {
+		plan(f, path, f.length(), f.lastModified());
+	}
+
+	/**
+	 * Assigns part and offset to a file found by a {@link DirectoryScanner}, without reading its attributes again.
+	 *
+	 * @param file The file to add.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public void plan(ScannedFile file) throws GeneralSecurityException {
+		plan(file.getFile(), file.getPath(), file.getSize(), file.getLastModified());
+	}
+
+	private void plan(File f, String path, long length, long lastModified) throws GeneralSecurityException {
+		final StreamCipher cipher = apFile.getCipher();
+		final long maxPartSize = apFile.getMaxPartSize();
+		if(length > maxPartSize) {
+			System.err.println("Error, \"" + f.getAbsolutePath() + "\" is bigger than the specified maximumPartSize (" + maxPartSize + " bytes). This program is not yet designed to store files bigger than the maximum part size.");
+			return;
+		}
+
+		int part = highestPart;
+		for (int i = 1; i <= highestPart; i++) {
+			if(getPartLength(i) + length <= maxPartSize) {
+				part = i;
+				break;
+			}
+		}
+		if(getPartLength(part) + length > maxPartSize) part = highestPart + 1;
+
+		long offset = getPartLength(part);
+		setPartLength(part, offset + length);
+		if(part > highestPart) highestPart = part;
+
+		jobs.add(new Job(f, path, part, offset, length, lastModified, cipher != null ? cipher.newNonce() : 0L));
+	}
+
+	private long getPartLength(int part) {
+		return part <= partLengths.size() ? partLengths.get(part - 1) : 0L;
+	}
+
+	private void setPartLength(int part, long length) {
+		while(partLengths.size() < part) partLengths.add(0L);
+		partLengths.set(part - 1, length);
+	}
+
+	/**
+	 * Processes all planned files and adds the resulting entries to the archive.
+	 *
+	 * @return true, if every file was written successfully.
+	 */
+	public boolean run() {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ArchivePart-Worker");
+			t.setDaemon(true);
+			return t;
+		});
+		Map<Integer, FileChannel> channels = new HashMap<>();
+
+		try {
+			int submitted = 0;
+			while(submitted < jobs.size() && submitted < threads)
+				pool.execute(jobs.get(submitted++));
+
+			for(Job job : jobs) {
+				writeJob(job, channels);
+				if(submitted < jobs.size()) pool.execute(jobs.get(submitted++));
+			}
+
+			List<ArchiveEntry> entries = new ArrayList<>(jobs.size());
+			for(Job job : jobs)
+				entries.add(new ArchiveEntry(job.path, job.part, job.offset, job.length, job.checksum, job.nonce, job.lastModified));
+
+			apFile.addEntries(entries);
+
+			apFile.sortEntries();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			pool.shutdownNow();
+			for(FileChannel channel : channels.values()) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void writeJob(Job job, Map<Integer, FileChannel> channels) throws IOException, InterruptedException {
+		FileChannel channel = channels.get(job.part);
+		if(channel == null) {
+			File partFile = apFile.getPartFile(job.part);
+			ArchivePart.log("Now writing into \"" + partFile.getAbsolutePath() + "\" ...");
+			channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channels.put(job.part, channel);
+		}
+
+		long position = job.offset;
+		while(true) {
+			byte[] chunk = job.queue.take();
+			if(chunk == END) {
+				if(job.error == null && job.zeroCopy) {
+					try (FileChannel in = FileChannel.open(job.file.toPath(), StandardOpenOption.READ)) {
+						channel.position(position);
+						ChannelUtils.transfer(in, 0L, job.length, channel);
+					}
+				}
+				break;
+			}
+
+			ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, job.offset + job.length - position));
+			while(buf.hasRemaining()) position += channel.write(buf, position);
+
+			spareBuffers.offer(chunk);
+		}
+
+		Throwable error = job.error;
+		if(error instanceof IOException) throw (IOException) error;
+		if(error instanceof RuntimeException) throw (RuntimeException) error;
+		if(error instanceof Error) throw (Error) error;
+		if(error != null) throw new IOException("\"" + job.file.getAbsolutePath() + "\" could not be processed.", error);
+	}
+
+	private byte[] obtainBuffer() {
+		byte[] buffer = spareBuffers.poll();
+		return buffer != null ? buffer : new byte[CHUNK_SIZE];
+	}
+
+	private class Job implements Runnable {
+
+		final File file;
+		final String path;
+		final int part;
+		final long offset, length, lastModified, nonce;
+		final boolean zeroCopy = !apFile.isEncrypted();
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		volatile long checksum;
+		/** The failure of the worker, which the writer rethrows. */
+		volatile Throwable error = null;
+
+		Job(File file, String path, int part, long offset, long length, long lastModified, long nonce) {
+			this.file = file;
+			this.path = path;
+			this.part = part;
+			this.offset = offset;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.nonce = nonce;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(zeroCopy) checksumOnly();
+				else process();
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				//the writer waits for the end of the job, even if it failed
+				boolean interrupted = Thread.interrupted();
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) { // the pool was shut down, the writer is gone
+					interrupted = true;
+				}
+				if(interrupted) Thread.currentThread().interrupt();
+			}
+		}
+
+		/** Without encryption, the worker only computes the checksum from a mapping of the file and the writer transfers the file. */
+		private void checksumOnly() throws IOException {
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				if(in.size() != length) throw new IOException("\"" + file.getAbsolutePath() + "\" was changed during the build.");
+
+				Checksum checksum = apFile.getChecksumAlgorithm().create();
+				ChannelUtils.checksum(in, 0L, length, checksum);
+				this.checksum = checksum.getValue();
+			}
+		}
+
+		private void process() throws IOException, GeneralSecurityException, InterruptedException {
+			try (InputStream in = new FileInputStream(file)) {
+				Checksum checksum = apFile.getChecksumAlgorithm().create();
+				StreamCipher cipher = apFile.getCipher();
+				long position = 0L;
+
+				while(position < length) {
+					byte[] buffer = obtainBuffer();
+					int filled = 0;
+					int wanted = (int) Math.min(buffer.length, length - position);
+					int read;
+					while(filled < wanted && (read = in.read(buffer, filled, wanted - filled)) != -1) filled += read;
+
+					if(filled < wanted) throw new IOException("\"" + file.getAbsolutePath() + "\" was changed during the build.");
+
+					checksum.update(buffer, 0, filled);
+					if(cipher != null) cipher.apply(buffer, 0, filled, nonce, position);
+
+					position += filled;
+					queue.put(buffer);
+				}
+
+				if(in.read() != -1) throw new IOException("\"" + file.getAbsolutePath() + "\" was changed during the build.");
+
+				this.checksum = checksum.getValue();
+			}
+		}
+
+	}
+
+}
@@ -2,34 +2,57 @@ package work.lclpnet.archivepart.factory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.regex.Pattern;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 
-import work.lclpnet.archivepart.crypto.CipherUtils;
-import work.lclpnet.archivepart.crypto.XorOutputStream;
+import work.lclpnet.archivepart.checksum.ChecksumAlgorithm;
+import work.lclpnet.archivepart.crypto.EncryptionMode;
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.crypto.StreamCipherOutputStream;
 import work.lclpnet.archivepart.factory.readers.APReaderV1;
+import work.lclpnet.archivepart.io.ChannelUtils;
+import work.lclpnet.archivepart.io.DurabilityMode;
 import work.lclpnet.archivepart.model.ArchiveEntry;
 import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.DirectoryScanner;
+import work.lclpnet.archivepart.model.EntryTable;
+import work.lclpnet.archivepart.model.FreeSpaceMap;
+import work.lclpnet.archivepart.model.ScannedFile;
 import work.lclpnet.archivepart.model.Triplet;
 import work.lclpnet.archivepart.ArchivePart;
 
 public class APBuilder {
 
+	private static final int HEADER_BUFFER_SIZE = 64 * 1024;
+
 	private File root, output;
 	private long maxPartSize = (long) Math.pow(1024D, 3D);
 	private String password = null;
+	private int threads = 1;
+	private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.CRC32;
+	private EncryptionMode encryptionMode = EncryptionMode.XOR;
+	private boolean lazyDeletion = false;
+	private DurabilityMode durabilityMode = DurabilityMode.NONE;
+	private final List<String> includes = new ArrayList<>(), excludes = new ArrayList<>();
 
 	private int currentPart = 0;
 	private long currentLength = 0L;
@@ -69,6 +92,99 @@ public class APBuilder {
 		return password;
 	}
 
+	/**
+	 * Sets the encryption mode, which is used if a password is set.
+	 * 
+	 * @param encryptionMode The encryption mode.
+	 * @return This builder.
+	 */
+	public APBuilder setEncryptionMode(EncryptionMode encryptionMode) {
+		if(encryptionMode == null) throw new IllegalArgumentException("The encryption mode must not be null.");
+		this.encryptionMode = encryptionMode;
+		return this;
+	}
+
+	public EncryptionMode getEncryptionMode() {
+		return encryptionMode;
+	}
+
+	public APBuilder setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+		if(checksumAlgorithm == null) throw new IllegalArgumentException("The checksum algorithm must not be null.");
+		this.checksumAlgorithm = checksumAlgorithm;
+		return this;
+	}
+
+	public ChecksumAlgorithm getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+	/**
+	 * @param lazyDeletion The lazy deletion mode of the archive, see {@link ArchivePartFile#setLazyDeletion(boolean)}.
+	 * @return This builder.
+	 */
+	public APBuilder setLazyDeletion(boolean lazyDeletion) {
+		this.lazyDeletion = lazyDeletion;
+		return this;
+	}
+
+	public boolean isLazyDeletion() {
+		return lazyDeletion;
+	}
+
+	/**
+	 * @param durabilityMode Whether the part files and the header are forced to the storage device before the build finishes.
+	 * Both commit modes force them once, as the header is only written once.
+	 * @return This builder.
+	 */
+	public APBuilder setDurabilityMode(DurabilityMode durabilityMode) {
+		if(durabilityMode == null) throw new IllegalArgumentException("The durability mode must not be null.");
+		this.durabilityMode = durabilityMode;
+		return this;
+	}
+
+	public DurabilityMode getDurabilityMode() {
+		return durabilityMode;
+	}
+
+	/**
+	 * Sets the number of worker threads which read, checksum and encrypt files concurrently.
+	 * With more than one thread, the build uses an {@link APBuildPipeline}.
+	 * 
+	 * @param threads The number of worker threads, at least 1.
+	 * @return This builder.
+	 */
+	public APBuilder setThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException("The number of threads has to be at least 1.");
+		this.threads = threads;
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Only adds files whose path inside the archive matches one of the include globs, see {@link DirectoryScanner#addInclude(String)}.
+	 * 
+	 * @param glob The glob, e.g. <code>/images/**.png</code>.
+	 * @return This builder.
+	 */
+	public APBuilder addInclude(String glob) {
+		includes.add(glob);
+		return this;
+	}
+
+	/**
+	 * Skips files and directories whose path inside the archive matches the glob, see {@link DirectoryScanner#addExclude(String)}.
+	 * 
+	 * @param glob The glob, e.g. <code>**.tmp</code>.
+	 * @return This builder.
+	 */
+	public APBuilder addExclude(String glob) {
+		excludes.add(glob);
+		return this;
+	}
+
 	public synchronized ArchivePartFile build() {
 		if(!deleteOldVersion(FilenameUtils.getExtension(output.getName()))) {
 			System.err.println("Error, couldn't delete old version of output file. ArchivePart will not finish the build.");
@@ -76,10 +192,30 @@ public class APBuilder {
 		}
 
 		ArchivePart.log("Building archive parts...");
-		if(password != null) ArchivePart.log("Using XOR encryption...");
+		if(password != null) ArchivePart.log("Using " + (encryptionMode == EncryptionMode.AES_CTR ? "AES-CTR" : "XOR") + " encryption...");
 
 		ArchivePartFile apFile = new ArchivePartFile(output, password, maxPartSize);
-		if(!recursive(root, root.getAbsolutePath(), apFile)) {
+		apFile.setChecksumAlgorithm(checksumAlgorithm);
+		apFile.setEncryption(encryptionMode, null);
+		apFile.setLazyDeletion(lazyDeletion);
+		DirectoryScanner scanner = new DirectoryScanner(root).setThreads(threads);
+		includes.forEach(scanner::addInclude);
+		excludes.forEach(scanner::addExclude);
+
+		boolean built;
+		if(threads > 1) {
+			ArchivePart.log("Using " + threads + " worker threads...");
+			APBuildPipeline pipeline = new APBuildPipeline(apFile, threads);
+			try {
+				plan(scanner, pipeline);
+				built = pipeline.run();
+			} catch (GeneralSecurityException e) {
+				e.printStackTrace();
+				built = false;
+			}
+		} else built = add(scanner, apFile);
+
+		if(!built) {
 			System.err.println("Error, there has been an error. ArchivePart will not finish the build.");
 			return null;
 		}
@@ -89,7 +225,15 @@ public class APBuilder {
 		ArchivePart.log("Writing summary...");
 
 		BuilderState state = new BuilderState(currentOut, currentLength, currentPart, maxPartSize, password);
-		if(!writeSummary(state, apFile)) return null;
+		//the parts are forced once, right before the header which refers to them
+		apFile.setDurability(durabilityMode);
+		for (int part = 1; part <= apFile.getHighestPartFileNumber(); part++)
+			apFile.getDurability().markDirty(part);
+
+		//no journal belongs to a new archive, so the id only depends on the content, however the parts were written
+		apFile.getJournal().setId(0L);
+
+		if(!apFile.getDurability().syncDirtyParts() || !writeSummary(state, apFile)) return null;
 
 		ArchivePart.log("An ArchivePart has been built.");
 
@@ -99,6 +243,9 @@ public class APBuilder {
 	private boolean deleteOldVersion(String ext) {
 		oldVersionDeletedSuccessfully = output.exists() ? ArchivePart.delete(output) : true;
 
+		File journal = new File(output.getPath() + ".journal");
+		if(journal.exists()) oldVersionDeletedSuccessfully &= ArchivePart.delete(journal);
+
 		File parent = new File(output.getAbsolutePath().substring(0, output.getAbsolutePath().length() - output.getName().length()));
 		if(!parent.exists()) return oldVersionDeletedSuccessfully;
 		
@@ -114,83 +261,133 @@ public class APBuilder {
 		return oldVersionDeletedSuccessfully;
 	}
 
-	private boolean recursive(File parent, String rootPath, ArchivePartFile apFile) {
-		File[] children = parent.listFiles();
-		if(children == null) return true;
-
-		for(File f : children) {
-			if(f.isDirectory()) {
-				if(!recursive(f, rootPath, apFile)) return false;
-				else continue;
-			}
-
-			String path = f.getAbsolutePath().substring(rootPath.length()).replace(File.separatorChar, '/');
-			if(!apFile.addToArchive(f, path)) return false;
+	private boolean add(DirectoryScanner scanner, ArchivePartFile apFile) {
+		try (DirectoryScanner.Walk walk = scanner.walk()) {
+			for(ScannedFile f : walk)
+				if(!apFile.addToArchive(f, false)) return false;
 		}
 		return true;
 	}
 
+	private void plan(DirectoryScanner scanner, APBuildPipeline pipeline) throws GeneralSecurityException {
+		try (DirectoryScanner.Walk walk = scanner.walk()) {
+			for(ScannedFile f : walk)
+				pipeline.plan(f);
+		}
+	}
+
+	/**
+	 * Writes the header of an archive. The header is streamed into a temporary file, encrypting the content block by block,
+	 * so that the memory needed does not depend on the size of the header.
+	 * The length of the content is patched in afterwards and the temporary file atomically replaces the header.
+	 * The id of the header is derived from its content, see {@link work.lclpnet.archivepart.model.HeaderJournal#beginCheckpoint(long)}.
+	 * 
+	 * @return true, if the header was written.
+	 */
 	public static boolean writeSummary(BuilderState state, ArchivePartFile apFile) {
+		File f = new File(apFile.getBaseFile().getParent(), apFile.getBaseName() + "." + apFile.getExtension());
+		File tmp = new File(f.getPath() + ".tmp");
+
 		try {
 			if(state.currentOut != null) state.currentOut.close();
 
 			boolean encrypted = state.password != null;
-
-			File f = new File(apFile.getBaseFile().getParent(), apFile.getBaseName() + "." + apFile.getExtension());
-
-			DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
-			out.writeInt(ArchivePart.VERSION);
-			out.writeBoolean(encrypted);
-			out.writeLong(apFile.getMaxPartSize());
-
-			final byte[] match = APReaderV1.CHECK_BYTES;
-			byte[] checkBytes = encrypted ? CipherUtils.translate(match, state.password) : APReaderV1.CHECK_BYTES;
-			out.writeInt(checkBytes.length);
-			out.write(checkBytes, 0, checkBytes.length);
-
-			//From here, the data is first written into a temp stream. 
-			//Any transformations are applied first and afterwards written into the main stream. 
-			ByteArrayOutputStream dummyByteOut = new ByteArrayOutputStream();
-
-			//If the file should be encrypted, this will implement a CipherOutputStream.
-			OutputStream cipherBase = encrypted ? new XorOutputStream(dummyByteOut, state.password) : dummyByteOut;
-
-			//The DataOutputStream used to write data types.
-			DataOutputStream dummyOut = new DataOutputStream(cipherBase);
-
-			//Writing raw data
-			List<ArchiveEntry> entries = apFile.getEntries();
-			dummyOut.writeInt(entries.size());
-
-			for (int i = 0; i < entries.size(); i++) {
-				ArchiveEntry e = entries.get(i);
-				if(e == null) continue;
-
-				dummyOut.writeUTF(e.getFile());
-				dummyOut.writeInt(e.getPart());
-				dummyOut.writeLong(e.getOffset());
-				dummyOut.writeLong(e.getLength());
-				dummyOut.writeLong(e.getCrc32());
+			StreamCipher cipher = encrypted ? apFile.getCipher() : null;
+
+			try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				OutputStream raw = new BufferedOutputStream(Channels.newOutputStream(channel), HEADER_BUFFER_SIZE);
+				DataOutputStream out = new DataOutputStream(raw);
+				out.writeInt(ArchivePart.VERSION);
+				out.writeBoolean(encrypted);
+				out.writeLong(apFile.getMaxPartSize());
+				out.writeByte(apFile.getChecksumAlgorithm().getId());
+
+				long headerNonce = 0L;
+				if(encrypted) {
+					out.writeByte(apFile.getEncryptionMode().getId());
+					if(apFile.getEncryptionMode() == EncryptionMode.AES_CTR) {
+						out.writeInt(apFile.getSalt().length);
+						out.write(apFile.getSalt());
+					}
+
+					headerNonce = cipher.newNonce();
+					out.writeLong(headerNonce);
+				}
+
+				//The check bytes and the content form one cipher stream.
+				byte[] checkBytes = APReaderV1.CHECK_BYTES.clone();
+				if(encrypted) cipher.apply(checkBytes, 0, checkBytes.length, headerNonce, 0L);
+				out.writeInt(checkBytes.length);
+				out.write(checkBytes, 0, checkBytes.length);
+
+				//the length of the content is not known yet, it is patched in below
+				final long lengthPosition = out.size();
+				out.writeInt(0);
+				out.flush();
+
+				//the id of the header is derived from the hash of the plain content
+				Checksum contentHash = ChecksumAlgorithm.XXHASH64.create();
+				OutputStream target = encrypted ? new StreamCipherOutputStream(raw, cipher, headerNonce, checkBytes.length, HEADER_BUFFER_SIZE) : raw;
+				DataOutputStream content = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(target, contentHash), HEADER_BUFFER_SIZE));
+				EntryTable.write(content, apFile.getEntries());
+
+				content.writeBoolean(apFile.isLazyDeletion());
+
+				List<FreeSpaceMap.Hole> holes = apFile.getFreeSpaceMap().getHoles();
+				content.writeInt(holes.size());
+				for(FreeSpaceMap.Hole hole : holes) {
+					content.writeInt(hole.getPart());
+					content.writeLong(hole.getOffset());
+					content.writeLong(hole.getLength());
+				}
+
+				content.flush();
+				content.writeLong(apFile.getJournal().beginCheckpoint(contentHash.getValue()));
+
+				content.flush();
+				if(content.size() == Integer.MAX_VALUE) throw new IOException("The header is too big.");
+
+				ByteBuffer length = ByteBuffer.allocate(4).putInt(0, content.size());
+				long position = lengthPosition;
+				while(length.hasRemaining())
+					position += channel.write(length, position);
+
+				apFile.getDurability().sync(channel);
 			}
 
-			//writing to the temp stream is now finished
-			dummyOut.close();
-
-			//writing bytes from temp stream to main stream.
-			byte[] byteArray = dummyByteOut.toByteArray();
-			out.writeInt(byteArray.length);
-			out.write(byteArray, 0, byteArray.length);
-
-			out.close();
+			ArchivePart.replace(tmp, f);
+			apFile.getDurability().syncDirectory();
 			return true;
-		} catch (IOException e) {
+		} catch (IOException | GeneralSecurityException e) {
 			e.printStackTrace();
+			if(tmp.exists() && !tmp.delete()) System.err.println("Could not delete \"" + tmp.getAbsolutePath() + "\".");
 			return false;
 		}
 	}
 
 	public static boolean write(BuilderState state, File f, String path, ArchivePartFile apFile) {
-		final long length = f.length();
+		return write(state, f, path, apFile, null);
+	}
+
+	/**
+	 * Writes a file into the current part of the state.
+	 * 
+	 * @param written If not null, the new entry is added to this collection instead of the archive,
+	 * so that multiple entries can be published at once.
+	 * @return false, if an error occurred.
+	 */
+	public static boolean write(BuilderState state, File f, String path, ArchivePartFile apFile, Collection<ArchiveEntry> written) {
+		return write(state, f, path, f.length(), f.lastModified(), apFile, written);
+	}
+
+	/**
+	 * Writes a file whose attributes are already known, e.g. from a {@link DirectoryScanner}, see {@link #write(BuilderState, File, String, ArchivePartFile, Collection)}.
+	 * 
+	 * @param length The length of the file.
+	 * @param lastModified The modification time of the file.
+	 * @return false, if an error occurred.
+	 */
+	public static boolean write(BuilderState state, File f, String path, long length, long lastModified, ArchivePartFile apFile, Collection<ArchiveEntry> written) {
 		if(length > state.maxPartSize) {
 			System.err.println("Error, \"" + f.getAbsolutePath() + "\" is bigger than the specified maximumPartSize (" + state.maxPartSize + " bytes). This program is not yet designed to store files bigger than the maximum part size.");
 			return true;
@@ -205,7 +402,9 @@ public class APBuilder {
 				File out = result.a;
 				if(out == null) return false;
 
-				state.currentOut = new BufferedOutputStream(APBuilder.openOutputStream(out));
+				FileOutputStream fileOut = APBuilder.openOutputStream(out);
+				state.currentChannel = fileOut.getChannel();
+				state.currentOut = new BufferedOutputStream(fileOut);
 			}
 
 			if(state.currentLength + length > state.maxPartSize) {
@@ -218,31 +417,45 @@ public class APBuilder {
 				File nextOut = result.a;
 				if(nextOut == null) return false;
 
-				state.currentOut = new BufferedOutputStream(APBuilder.openOutputStream(nextOut));
+				FileOutputStream fileOut = APBuilder.openOutputStream(nextOut);
+				state.currentChannel = fileOut.getChannel();
+				state.currentOut = new BufferedOutputStream(fileOut);
 			}
 
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(f));
-
-			byte[] buffer = new byte[8192];
-			int read;
-			int offset = 0;
-			String keyBefore = state.password != null ? new String(state.password) : null;
-			while ((read = in.read(buffer)) != -1) {
-				byte[] write;
-				if(state.password != null) {
-					keyBefore = APBuilder.shift(keyBefore, -offset);
-					write = CipherUtils.translate(buffer, keyBefore);
-					offset = write.length % keyBefore.length();
-				} else write = buffer;
-
-				state.currentOut.write(write, 0, read);
-			}
+			StreamCipher cipher = apFile.getCipher();
+			long nonce = cipher != null ? cipher.newNonce() : 0L;
+			long checksum;
+
+			if(cipher == null && state.currentChannel != null) {
+				//Without encryption, the data does not need to pass through the heap. It is checksummed from a mapping of the file right before it is transferred.
+				state.currentOut.flush();
 
-			in.close();
+				try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+					Checksum check = apFile.getChecksumAlgorithm().create();
+					ChannelUtils.copy(in, 0L, length, state.currentChannel, check);
+					checksum = check.getValue();
+				}
+			} else {
+				CheckedInputStream in = new CheckedInputStream(new BufferedInputStream(new FileInputStream(f)), apFile.getChecksumAlgorithm().create());
 
-			long crc32 = FileUtils.checksumCRC32(f);
+				byte[] buffer = new byte[8192];
+				int read;
+				long position = 0L;
+				while ((read = in.read(buffer)) != -1) {
+					if(cipher != null) cipher.apply(buffer, 0, read, nonce, position);
+					position += read;
+
+					state.currentOut.write(buffer, 0, read);
+				}
+
+				in.close();
+
+				checksum = in.getChecksum().getValue();
+			}
 			
-			apFile.addEntry(new ArchiveEntry(path, state.currentPart, state.currentLength, length, crc32));
+			ArchiveEntry entry = new ArchiveEntry(path, state.currentPart, state.currentLength, length, checksum, nonce, lastModified);
+			if(written != null) written.add(entry);
+			else apFile.addEntry(entry);
 			state.currentLength += length;
 
 			return true;
@@ -271,11 +484,11 @@ public class APBuilder {
 		return Triplet.of(nextOut, state.currentPart, state.currentLength);
 	}
 
-	public static OutputStream openOutputStream(File f) throws GeneralSecurityException, IOException {
+	public static FileOutputStream openOutputStream(File f) throws GeneralSecurityException, IOException {
 		return new FileOutputStream(f, false);
 	}
 
-	public static OutputStream openOutputStream(File f, boolean append) throws GeneralSecurityException, IOException {
+	public static FileOutputStream openOutputStream(File f, boolean append) throws GeneralSecurityException, IOException {
 		return new FileOutputStream(f, append);
 	}
 
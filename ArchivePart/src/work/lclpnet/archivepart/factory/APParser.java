@@ -1,5 +1,6 @@
 package work.lclpnet.archivepart.factory;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,8 +13,11 @@ import work.lclpnet.archivepart.ArchivePart;
 
 public class APParser {
 
+	private static final int BUFFER_SIZE = 16 * 1024;
+
 	private File file;
 	private String password = null;
+	private boolean compactEntries = false;
 	
 	public APParser(File f) {
 		if(f == null || !f.exists() || !f.isFile()) throw new IllegalArgumentException("\"" + f.getAbsolutePath() + "\" is not a file.");
@@ -28,6 +32,19 @@ public class APParser {
 	public String getPassword() {
 		return password;
 	}
+
+	/**
+	 * @param compactEntries True, if the parsed archive should store its entries compactly, see {@link ArchivePartFile#setCompactEntries(boolean)}.
+	 * @return This parser.
+	 */
+	public APParser setCompactEntries(boolean compactEntries) {
+		this.compactEntries = compactEntries;
+		return this;
+	}
+
+	public boolean isCompactEntries() {
+		return compactEntries;
+	}
 	
 	public File getFile() {
 		return file;
@@ -38,7 +55,7 @@ public class APParser {
 		DataInputStream in = null;
 
 		try {
-			in = new DataInputStream(new FileInputStream(file));
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
 			int version = in.readInt();
 			
 			ArchivePart.log("Parsing ArchivePart file with file version " + version + "...");
@@ -53,10 +70,32 @@ public class APParser {
 			case 3:
 				apFile = new APReaderV3().read(in, this);
 				break;
+			case 4:
+				apFile = new APReaderV4().read(in, this);
+				break;
+			case 5:
+				apFile = new APReaderV5().read(in, this);
+				break;
+			case 6:
+				apFile = new APReaderV6().read(in, this);
+				break;
+			case 7:
+				apFile = new APReaderV7().read(in, this);
+				break;
+			case 8:
+				apFile = new APReaderV8().read(in, this);
+				break;
+			case 9:
+				apFile = new APReaderV9().read(in, this);
+				break;
 			default:
 				throw new APParseException("This ArchivePart can't parse AP files with version " + version + ". (max=" + ArchivePart.VERSION + ")");
 			}
 
+			if(compactEntries) apFile.setCompactEntries(true);
+			apFile.recoverRewrite();
+			apFile.getJournal().replay();
+
 			return apFile;
 		} catch (Exception e) {
 			if(e instanceof APParseException) throw (APParseException) e;
@@ -1,10 +1,13 @@
 package work.lclpnet.archivepart.factory;
 
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 public class BuilderState {
 	
 	public OutputStream currentOut;
+	/** The channel of the file behind {@link #currentOut}, if known. Used for zero-copy transfers. */
+	public FileChannel currentChannel = null;
 	public long currentLength;
 	public int currentPart;
 	public long maxPartSize;
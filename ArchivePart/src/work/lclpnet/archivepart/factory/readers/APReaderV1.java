@@ -1,12 +1,14 @@
 package work.lclpnet.archivepart.factory.readers;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.commons.io.input.BoundedInputStream;
+
 import work.lclpnet.archivepart.crypto.CipherUtils;
 import work.lclpnet.archivepart.crypto.XorInputStream;
 import work.lclpnet.archivepart.factory.APParser;
@@ -18,6 +20,7 @@ import work.lclpnet.archivepart.model.ArchivePartFile;
 public class APReaderV1 implements APReader{
 
 	public static final byte[] CHECK_BYTES = "QVYZAulENKob2m7W".getBytes();
+	private static final int BUFFER_SIZE = 16 * 1024;
 
 	@Override
 	public ArchivePartFile read(DataInputStream in, APParser parser) throws Exception {
@@ -28,23 +31,17 @@ public class APReaderV1 implements APReader{
 
 		int checkLength = in.readInt();
 		byte[] checkRaw = new byte[checkLength];
-		in.read(checkRaw);
+		in.readFully(checkRaw);
 
 		final String wrongPasswordText = "Wrong password! Please try again.";
 		byte[] check = encrypted ? CipherUtils.translate(checkRaw, password) : checkRaw;
 		if(!Arrays.equals(check, CHECK_BYTES)) throw new APParseException(wrongPasswordText);
 
 		int contentLength = in.readInt();
-		byte[] content = new byte[contentLength];
-		in.read(content, 0, contentLength);
 
 		List<ArchiveEntry> entries = new ArrayList<>();
 		try {
-			InputStream base = new ByteArrayInputStream(content);
-			InputStream cipherBase = encrypted ? new XorInputStream(base, password) : base;
-			DataInputStream input = new DataInputStream(cipherBase);
-
-			//reading from back transformed stream
+			DataInputStream input = openContent(in, contentLength, encrypted ? password : null);
 
 			int size = input.readInt();
 
@@ -69,4 +66,21 @@ public class APReaderV1 implements APReader{
 		return new ArchivePartFile(parser.getFile(), encrypted ? password : null, entries, 512 * (long) Math.pow(1024D, 2D));
 	}
 
+	/**
+	 * Opens a decoder for the content of a version 1 to 4 header. The content is read from the header stream and decrypted block by block,
+	 * so that the memory used does not depend on the size of the header.
+	 * 
+	 * @param in The header stream, positioned at the start of the content.
+	 * @param contentLength The length of the content.
+	 * @param password The password, or null if the header is not encrypted.
+	 * @return A stream which ends with the content. Closing it does not close the header stream.
+	 */
+	static DataInputStream openContent(DataInputStream in, int contentLength, String password) {
+		BoundedInputStream bounded = new BoundedInputStream(in, contentLength);
+		bounded.setPropagateClose(false);
+
+		InputStream cipherBase = password != null ? new XorInputStream(bounded, password) : bounded;
+		return new DataInputStream(new BufferedInputStream(cipherBase, BUFFER_SIZE));
+	}
+
 }
@@ -1,14 +1,11 @@
 package work.lclpnet.archivepart.factory.readers;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import work.lclpnet.archivepart.crypto.CipherUtils;
-import work.lclpnet.archivepart.crypto.XorInputStream;
 import work.lclpnet.archivepart.factory.APParser;
 import work.lclpnet.archivepart.factory.APReader;
 import work.lclpnet.archivepart.model.APParseException;
@@ -29,23 +26,17 @@ public class APReaderV2 implements APReader{
 
 		int checkLength = in.readInt();
 		byte[] checkRaw = new byte[checkLength];
-		in.read(checkRaw);
+		in.readFully(checkRaw);
 
 		final String wrongPasswordText = "Wrong password! Please try again.";
 		byte[] check = encrypted ? CipherUtils.translate(checkRaw, password) : checkRaw;
 		if(!Arrays.equals(check, CHECK_BYTES)) throw new APParseException(wrongPasswordText);
 
 		int contentLength = in.readInt();
-		byte[] content = new byte[contentLength];
-		in.read(content, 0, contentLength);
 
 		List<ArchiveEntry> entries = new ArrayList<>();
 		try {
-			InputStream base = new ByteArrayInputStream(content);
-			InputStream cipherBase = encrypted ? new XorInputStream(base, password) : base;
-			DataInputStream input = new DataInputStream(cipherBase);
-
-			//reading from back transformed stream
+			DataInputStream input = APReaderV1.openContent(in, contentLength, encrypted ? password : null);
 
 			int size = input.readInt();
 
@@ -0,0 +1,72 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import work.lclpnet.archivepart.checksum.ChecksumAlgorithm;
+import work.lclpnet.archivepart.crypto.CipherUtils;
+import work.lclpnet.archivepart.factory.APParser;
+import work.lclpnet.archivepart.factory.APReader;
+import work.lclpnet.archivepart.model.APParseException;
+import work.lclpnet.archivepart.model.ArchiveEntry;
+import work.lclpnet.archivepart.model.ArchivePartFile;
+
+public class APReaderV4 implements APReader{
+
+	public static final byte[] CHECK_BYTES = "QVYZAulENKob2m7W".getBytes();
+
+	@Override
+	public ArchivePartFile read(DataInputStream in, APParser parser) throws Exception {
+		boolean encrypted = in.readBoolean();
+		long maxPartSize = in.readLong();
+		int checksumId = in.readUnsignedByte();
+
+		ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.byId(checksumId);
+		if(checksumAlgorithm == null) throw new APParseException("Unknown checksum algorithm with id " + checksumId + ".");
+
+		String password = parser.getPassword();
+		if(encrypted && password == null) throw new APParseException("This ArchivePart file is encrypted but no password was supplied.");
+
+		int checkLength = in.readInt();
+		byte[] checkRaw = new byte[checkLength];
+		in.readFully(checkRaw);
+
+		final String wrongPasswordText = "Wrong password! Please try again.";
+		byte[] check = encrypted ? CipherUtils.translate(checkRaw, password) : checkRaw;
+		if(!Arrays.equals(check, CHECK_BYTES)) throw new APParseException(wrongPasswordText);
+
+		int contentLength = in.readInt();
+
+		List<ArchiveEntry> entries = new ArrayList<>();
+		try {
+			DataInputStream input = APReaderV1.openContent(in, contentLength, encrypted ? password : null);
+
+			int size = input.readInt();
+
+			for (int i = 0; i < size; i++) {
+				String file = input.readUTF();
+				int part = input.readInt();
+				long offset = input.readLong();
+				long length = input.readLong();
+				long checksum = input.readLong();
+
+				entries.add(new ArchiveEntry(file, part, offset, length, checksum));
+			}
+
+			input.close();
+		} catch (Exception e) {
+			if(encrypted) {
+				APParseException ex = new APParseException("This file is encrypted. Make sure to pass the right parameters.");
+				ex.addSuppressed(e);
+				throw ex;
+			} else throw e;
+		}
+
+		ArchivePartFile apFile = new ArchivePartFile(parser.getFile(), encrypted ? password : null, entries, maxPartSize);
+		apFile.setChecksumAlgorithm(checksumAlgorithm);
+		return apFile;
+	}
+
+}
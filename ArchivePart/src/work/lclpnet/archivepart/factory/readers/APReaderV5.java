@@ -0,0 +1,121 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import work.lclpnet.archivepart.checksum.ChecksumAlgorithm;
+import work.lclpnet.archivepart.crypto.EncryptionMode;
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.factory.APParser;
+import work.lclpnet.archivepart.factory.APReader;
+import work.lclpnet.archivepart.model.APParseException;
+import work.lclpnet.archivepart.model.ArchiveEntry;
+import work.lclpnet.archivepart.model.ArchivePartFile;
+
+public class APReaderV5 implements APReader{
+
+	public static final byte[] CHECK_BYTES = "QVYZAulENKob2m7W".getBytes();
+
+	@Override
+	public ArchivePartFile read(DataInputStream in, APParser parser) throws Exception {
+		boolean encrypted = in.readBoolean();
+		long maxPartSize = in.readLong();
+		int checksumId = in.readUnsignedByte();
+
+		ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.byId(checksumId);
+		if(checksumAlgorithm == null) throw new APParseException("Unknown checksum algorithm with id " + checksumId + ".");
+
+		String password = parser.getPassword();
+		if(encrypted && password == null) throw new APParseException("This ArchivePart file is encrypted but no password was supplied.");
+
+		EncryptionMode encryptionMode = EncryptionMode.XOR;
+		byte[] salt = null;
+		long headerNonce = 0L;
+		if(encrypted) {
+			int modeId = in.readUnsignedByte();
+			encryptionMode = EncryptionMode.byId(modeId);
+			if(encryptionMode == null) throw new APParseException("Unknown encryption mode with id " + modeId + ".");
+
+			if(encryptionMode == EncryptionMode.AES_CTR) {
+				salt = new byte[in.readInt()];
+				in.readFully(salt);
+			}
+
+			headerNonce = in.readLong();
+		}
+
+		ArchivePartFile apFile = new ArchivePartFile(parser.getFile(), encrypted ? password : null, maxPartSize);
+		apFile.setChecksumAlgorithm(checksumAlgorithm);
+		apFile.setEncryption(encryptionMode, salt);
+		StreamCipher cipher = apFile.getCipher();
+
+		int checkLength = in.readInt();
+		byte[] check = new byte[checkLength];
+		in.readFully(check);
+
+		final String wrongPasswordText = "Wrong password! Please try again.";
+		if(encrypted) cipher.apply(check, 0, checkLength, headerNonce, 0L);
+		if(!Arrays.equals(check, CHECK_BYTES)) throw new APParseException(wrongPasswordText);
+
+		int contentLength = in.readInt();
+
+		try {
+			readContent(in, contentLength, apFile, parser, headerNonce, checkLength);
+		} catch (Exception e) {
+			if(encrypted) {
+				APParseException ex = new APParseException("This file is encrypted. Make sure to pass the right parameters.");
+				ex.addSuppressed(e);
+				throw ex;
+			} else throw e;
+		}
+
+		return apFile;
+	}
+
+	/**
+	 * Reads the entries and the trailer.
+	 * 
+	 * @param in The stream, positioned at the start of the content.
+	 * @param contentLength The length of the content.
+	 * @param headerNonce The nonce of the header cipher stream, which continues behind the check bytes.
+	 * @param checkLength The number of check bytes.
+	 */
+	protected void readContent(DataInputStream in, int contentLength, ArchivePartFile apFile, APParser parser, long headerNonce, int checkLength) throws Exception {
+		byte[] content = new byte[contentLength];
+		in.readFully(content);
+
+		if(apFile.isEncrypted()) apFile.getCipher().apply(content, 0, contentLength, headerNonce, checkLength);
+
+		List<ArchiveEntry> entries = new ArrayList<>();
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+
+		int size = input.readInt();
+
+		for (int i = 0; i < size; i++) {
+			String file = input.readUTF();
+			int part = input.readInt();
+			long offset = input.readLong();
+			long length = input.readLong();
+			long checksum = input.readLong();
+			long nonce = input.readLong();
+
+			entries.add(new ArchiveEntry(file, part, offset, length, checksum, nonce));
+		}
+
+		readTrailer(input, apFile);
+
+		input.close();
+
+		apFile.setEntries(entries);
+	}
+
+	/**
+	 * Reads the data which newer versions store behind the entries.
+	 */
+	protected void readTrailer(DataInputStream input, ArchivePartFile apFile) throws IOException {}
+
+}
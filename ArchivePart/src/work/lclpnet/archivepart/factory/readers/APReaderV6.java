@@ -0,0 +1,29 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.FreeSpaceMap;
+
+/**
+ * Version 6 adds the lazy deletion mode and the {@link FreeSpaceMap} behind the entries.
+ */
+public class APReaderV6 extends APReaderV5 {
+
+	@Override
+	protected void readTrailer(DataInputStream input, ArchivePartFile apFile) throws IOException {
+		apFile.setLazyDeletion(input.readBoolean());
+
+		FreeSpaceMap freeSpace = apFile.getFreeSpaceMap();
+		int holes = input.readInt();
+		for (int i = 0; i < holes; i++) {
+			int part = input.readInt();
+			long offset = input.readLong();
+			long length = input.readLong();
+
+			freeSpace.free(part, offset, length);
+		}
+	}
+
+}
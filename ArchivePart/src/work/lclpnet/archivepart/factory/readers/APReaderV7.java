@@ -0,0 +1,44 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.ByteBuffer;
+
+import work.lclpnet.archivepart.factory.APParser;
+import work.lclpnet.archivepart.model.APParseException;
+import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.EntryTable;
+
+/**
+ * Version 7 stores the entries as an {@link EntryTable}, followed by the trailer of version 6.
+ * The content is read into one heap buffer and decrypted in one pass, if necessary. The entries are only created when they are needed.
+ * The content is not memory mapped, because the table outlives the reader while the header file is replaced by writers.
+ */
+public class APReaderV7 extends APReaderV6 {
+
+	@Override
+	protected void readContent(DataInputStream in, int contentLength, ArchivePartFile apFile, APParser parser, long headerNonce, int checkLength) throws Exception {
+		byte[] bytes = new byte[contentLength];
+		in.readFully(bytes);
+		if(apFile.isEncrypted()) apFile.getCipher().apply(bytes, 0, contentLength, headerNonce, checkLength);
+		ByteBuffer content = ByteBuffer.wrap(bytes);
+
+		EntryTable table = createTable(content);
+
+		byte[] trailer = new byte[contentLength - table.getEncodedLength()];
+		ByteBuffer slice = content.duplicate();
+		slice.position(table.getEncodedLength());
+		slice.get(trailer);
+
+		try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(trailer))) {
+			readTrailer(input, apFile);
+		}
+
+		apFile.setEntryTable(table);
+	}
+
+	protected EntryTable createTable(ByteBuffer content) throws APParseException {
+		return new EntryTable(content, false);
+	}
+
+}
@@ -0,0 +1,20 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import work.lclpnet.archivepart.model.ArchivePartFile;
+import work.lclpnet.archivepart.model.HeaderJournal;
+
+/**
+ * Version 8 adds the id of the header behind the trailer of version 6, which identifies its {@link HeaderJournal}.
+ */
+public class APReaderV8 extends APReaderV7 {
+
+	@Override
+	protected void readTrailer(DataInputStream input, ArchivePartFile apFile) throws IOException {
+		super.readTrailer(input, apFile);
+		apFile.getJournal().setId(input.readLong());
+	}
+
+}
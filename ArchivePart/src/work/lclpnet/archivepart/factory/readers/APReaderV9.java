@@ -0,0 +1,19 @@
+package work.lclpnet.archivepart.factory.readers;
+
+import java.nio.ByteBuffer;
+
+import work.lclpnet.archivepart.model.APParseException;
+import work.lclpnet.archivepart.model.EntryTable;
+
+/**
+ * Version 9 adds the modification time of the source file to the records of the {@link EntryTable},
+ * so that a sync can skip files whose size and modification time did not change.
+ */
+public class APReaderV9 extends APReaderV8 {
+
+	@Override
+	protected EntryTable createTable(ByteBuffer content) throws APParseException {
+		return new EntryTable(content, true);
+	}
+
+}
@@ -0,0 +1,152 @@
+package work.lclpnet.archivepart.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+public class ChannelUtils {
+
+	private static final int BUFFER_SIZE = 64 * 1024; //64KB
+	private static final long MAP_WINDOW_SIZE = 16L * 1024L * 1024L; //16MB
+	/** Checksum#update(ByteBuffer), which exists since Java 9. */
+	private static final MethodHandle UPDATE_BUFFER = findUpdateBuffer();
+
+	/**
+	 * Transfers a range of a file channel to a target channel, using {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+	 * so that the kernel can copy the data without passing it through the JVM heap.
+	 *
+	 * @param source The source channel.
+	 * @param position The position of the range inside the source.
+	 * @param count The number of bytes to transfer.
+	 * @param target The target channel.
+	 * @throws IOException If the transfer failed or the source ended before <code>count</code> bytes were transferred.
+	 */
+	public static void transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+		while(count > 0) {
+			long transferred = source.transferTo(position, count, target);
+			if(transferred <= 0 && position >= source.size()) throw new EOFException("Unexpected end of file, " + count + " bytes are missing.");
+
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	/**
+	 * Feeds a range of a file channel into a checksum, by mapping it in windows, so the data is not copied into the heap.
+	 *
+	 * @param source The source channel.
+	 * @param position The position of the range inside the source.
+	 * @param count The number of bytes to read.
+	 * @param checksum The checksum to update.
+	 * @throws IOException If the range could not be read completely.
+	 */
+	public static void checksum(FileChannel source, long position, long count, Checksum checksum) throws IOException {
+		if(position + count > source.size()) throw new EOFException("Unexpected end of file, " + (position + count - source.size()) + " bytes are missing.");
+
+		while(count > 0) {
+			long window = Math.min(count, MAP_WINDOW_SIZE);
+			update(checksum, source.map(FileChannel.MapMode.READ_ONLY, position, window));
+
+			position += window;
+			count -= window;
+		}
+	}
+
+	/**
+	 * Transfers a range of a file channel to a target channel like {@link #transfer(FileChannel, long, long, WritableByteChannel)} and feeds it into a checksum.
+	 * Every window of the range is mapped and checksummed right before it is transferred, so the kernel copies it from the page cache
+	 * and the file is only read once from the storage device.
+	 *
+	 * @param source The source channel.
+	 * @param position The position of the range inside the source.
+	 * @param count The number of bytes to copy.
+	 * @param target The target channel, which is written at its current position.
+	 * @param checksum The checksum to update.
+	 * @throws IOException If the range could not be read completely or the target could not be written.
+	 */
+	public static void copy(FileChannel source, long position, long count, WritableByteChannel target, Checksum checksum) throws IOException {
+		if(position + count > source.size()) throw new EOFException("Unexpected end of file, " + (position + count - source.size()) + " bytes are missing.");
+
+		while(count > 0) {
+			long window = Math.min(count, MAP_WINDOW_SIZE);
+			update(checksum, source.map(FileChannel.MapMode.READ_ONLY, position, window));
+			transfer(source, position, window, target);
+
+			position += window;
+			count -= window;
+		}
+	}
+
+	/**
+	 * Feeds the remaining bytes of a buffer into a checksum. {@link CRC32} and, since Java 9, every checksum read direct buffers themselves,
+	 * otherwise the buffer is copied in chunks.
+	 */
+	private static void update(Checksum checksum, ByteBuffer buf) throws IOException {
+		if(checksum instanceof CRC32) {
+			((CRC32) checksum).update(buf);
+			return;
+		}
+
+		if(UPDATE_BUFFER != null) {
+			try {
+				UPDATE_BUFFER.invokeExact(checksum, buf);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new IOException(e);
+			}
+			return;
+		}
+
+		byte[] chunk = new byte[Math.min(BUFFER_SIZE, Math.max(buf.remaining(), 1))];
+		while(buf.hasRemaining()) {
+			int n = Math.min(chunk.length, buf.remaining());
+			buf.get(chunk, 0, n);
+			checksum.update(chunk, 0, n);
+		}
+	}
+
+	private static MethodHandle findUpdateBuffer() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Checksum.class, "update", MethodType.methodType(void.class, ByteBuffer.class));
+		} catch (ReflectiveOperationException e) {
+			return null; // Java 8
+		}
+	}
+
+	/**
+	 * Forces the content and the metadata of a file to the storage device.
+	 *
+	 * @param file The file to synchronize.
+	 * @throws IOException If the file could not be synchronized.
+	 */
+	public static void force(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory to the storage device, so that created, renamed and deleted files survive a crash.
+	 * Some platforms cannot open directories, there this does nothing.
+	 *
+	 * @param directory The directory to synchronize.
+	 */
+	public static void forceDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			//not supported, e.g. on Windows
+		}
+	}
+
+}
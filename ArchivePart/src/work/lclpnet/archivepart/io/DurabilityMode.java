@@ -0,0 +1,20 @@
+package work.lclpnet.archivepart.io;
+
+/**
+ * Determines when the modified part files and the header of an archive are forced to the storage device.
+ */
+public enum DurabilityMode {
+
+	/** Nothing is forced, the operating system decides when the data is written. */
+	NONE,
+	/** The part files and the header of multiple operations are forced together, after a number of operations or an interval. */
+	GROUP_COMMIT,
+	/** The part files and the header are forced after every operation. */
+	PER_OPERATION;
+
+	@Override
+	public String toString() {
+		return super.toString().toLowerCase();
+	}
+
+}
@@ -0,0 +1,192 @@
+package work.lclpnet.archivepart.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.model.ArchiveEntry;
+import work.lclpnet.archivepart.model.ArchivePartFile;
+
+/**
+ * Random access to the entries of an archive through memory mapped part files.<br>
+ * <br>
+ * Every part file is mapped in aligned windows, so parts bigger than 2GB can be read as well.
+ * Entries are handed out as read-only slices of these windows, without any system call per entry.
+ * Encrypted entries are only decrypted when, and as far as, they are read.
+ * Instances are thread safe. Windows of part files which were rewritten by a writer of the archive are mapped again.
+ * A slice is a view of the part file and not guarded by a lease, so the range of a lazily removed entry may be reused while an old slice of it is still read.
+ */
+public class MappedEntryReader implements Closeable {
+
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 30; //1GB
+
+	private final ArchivePartFile apFile;
+	private final long windowSize;
+	private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	public MappedEntryReader(ArchivePartFile apFile) {
+		this(apFile, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedEntryReader(ArchivePartFile apFile, int windowSize) {
+		if(apFile == null) throw new IllegalArgumentException("The given archive is null!");
+		if(windowSize <= 0) throw new IllegalArgumentException("The window size has to be bigger than 0!");
+
+		this.apFile = apFile;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * @param entry The entry to map.
+	 * @return A read-only view of the raw (possibly encrypted) bytes of the entry.
+	 * @throws IOException If the part file could not be mapped.
+	 */
+	public ByteBuffer slice(ArchiveEntry entry) throws IOException {
+		if(closed) throw new IOException("The reader is closed.");
+		if(entry == null) throw new IllegalArgumentException("The given entry is null!");
+
+		PartChannelPool pool = apFile.getChannelPool();
+		if(!entry.isStale()) {
+			ByteBuffer cached = slice(entry, pool.getGeneration(), false);
+			if(cached != null) return cached;
+		}
+
+		synchronized (pool) { // the entry has to match the part file which is mapped
+			return slice(resolve(entry), pool.getGeneration(), true);
+		}
+	}
+
+	private ByteBuffer slice(ArchiveEntry entry, long generation, boolean map) throws IOException {
+		if(entry.getLength() > Integer.MAX_VALUE) throw new IOException("The entry \"" + entry.getFile() + "\" is too big to be mapped.");
+		if(entry.getLength() == 0L) return ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+		final long start = entry.getOffset(), end = start + entry.getLength();
+		final long window = start / windowSize;
+
+		ByteBuffer buf;
+		int position;
+		if((end - 1) / windowSize == window) {
+			final Long key = ((long) entry.getPart() << 32) | window;
+			final long required = end - window * windowSize;
+
+			Window w = windows.get(key);
+			if(w == null || w.generation != generation || w.buffer.capacity() < required) {
+				if(!map) return null;
+
+				//the part file might have been replaced or might have grown since the window was mapped
+				w = new Window(map(entry.getPart(), window * windowSize, windowSize), generation);
+				if(w.buffer.capacity() < required) throw new IOException("The part file " + entry.getPart() + " is shorter than expected.");
+
+				windows.put(key, w);
+			}
+
+			buf = w.buffer;
+			position = (int) (start - window * windowSize);
+		} else {
+			if(!map) return null;
+
+			//the entry crosses a window boundary, map it on its own
+			buf = map(entry.getPart(), start, entry.getLength());
+			position = 0;
+		}
+
+		ByteBuffer dup = buf.duplicate();
+		dup.position(position).limit(position + (int) entry.getLength());
+		return dup.slice().asReadOnlyBuffer();
+	}
+
+	private ArchiveEntry resolve(ArchiveEntry entry) throws IOException {
+		ArchiveEntry current = apFile.resolve(entry);
+		if(current == null) throw new IOException("The entry \"" + entry.getFile() + "\" was removed from the archive.");
+		return current;
+	}
+
+	/**
+	 * @param entry The entry to read.
+	 * @return A read-only buffer with the decrypted contents of the entry.
+	 * If the archive is encrypted, the entry is decrypted into a new heap buffer, otherwise the mapped slice is returned.
+	 * @throws IOException If the part file could not be mapped.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public ByteBuffer getBuffer(ArchiveEntry entry) throws IOException, GeneralSecurityException {
+		if(entry.isStale()) entry = resolve(entry);
+
+		ByteBuffer slice = slice(entry);
+		StreamCipher cipher = apFile.getCipher();
+		if(cipher == null) return slice;
+
+		ByteBuffer copy = ByteBuffer.allocate(slice.remaining());
+		copy.put(slice).flip();
+		cipher.apply(copy, entry.getNonce(), 0L);
+		return copy.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads and decrypts a range of an entry.
+	 *
+	 * @param entry The entry to read.
+	 * @param position The position inside the entry.
+	 * @param dst The buffer to read into, from its position up to its limit.
+	 * @return The number of bytes read, or -1 if the position is at or beyond the end of the entry.
+	 * @throws IOException If the part file could not be mapped.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public int read(ArchiveEntry entry, long position, ByteBuffer dst) throws IOException, GeneralSecurityException {
+		if(position < 0L) throw new IllegalArgumentException("The position must not be negative.");
+		if(entry.isStale()) entry = resolve(entry);
+		if(position >= entry.getLength()) return -1;
+
+		ByteBuffer slice = slice(entry);
+		slice.position((int) position);
+		int n = Math.min(slice.remaining(), dst.remaining());
+		slice.limit((int) position + n);
+
+		ByteBuffer target = dst.duplicate();
+		target.put(slice);
+		target.flip().position(dst.position());
+
+		StreamCipher cipher = apFile.getCipher();
+		if(cipher != null) cipher.apply(target, entry.getNonce(), position);
+
+		dst.position(dst.position() + n);
+		return n;
+	}
+
+	private MappedByteBuffer map(int part, long position, long length) throws IOException {
+		try (PartChannelPool.Lease lease = apFile.getChannelPool().acquire(part)) {
+			FileChannel channel = lease.getChannel();
+			long size = Math.min(length, channel.size() - position);
+			if(size <= 0L) throw new IOException("The part file " + part + " is shorter than expected.");
+
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		}
+	}
+
+	/**
+	 * Releases the mappings. They are unmapped by the garbage collector, as soon as no slice refers to them anymore.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		windows.clear();
+	}
+
+	private static class Window {
+
+		final MappedByteBuffer buffer;
+		final long generation;
+
+		Window(MappedByteBuffer buffer, long generation) {
+			this.buffer = buffer;
+			this.generation = generation;
+		}
+
+	}
+
+}
@@ -0,0 +1,246 @@
+package work.lclpnet.archivepart.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import work.lclpnet.archivepart.model.ArchivePartFile;
+
+/**
+ * A pool of read-only {@link FileChannel}s, one per part file, which are opened lazily and shared between all readers.<br>
+ * <br>
+ * Readers use positional reads, so any number of threads can read the same part at the same time.
+ * A channel is leased while it is in use. Channels which have not been leased for {@link #getIdleTimeout()} milliseconds
+ * are closed, as well as the least recently used ones if more than {@link #getMaxOpenChannels()} are open.<br>
+ * <br>
+ * Every lease gets a sequence number, so writers can tell whether a part is still read by a lease which was acquired before a certain point, see {@link #isLeased(int, long)}.
+ */
+public class PartChannelPool implements Closeable {
+
+	private final ArchivePartFile apFile;
+	private final Map<Integer, Slot> slots = new HashMap<>();
+	private long idleTimeout = 60 * 1000L;
+	private int maxOpenChannels = 64;
+	private boolean closed = false;
+	private volatile long generation = 0L;
+	private long leaseSequence = 0L;
+
+	public PartChannelPool(ArchivePartFile apFile) {
+		this.apFile = apFile;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		if(idleTimeout < 0L) throw new IllegalArgumentException("The idle timeout must not be negative.");
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getMaxOpenChannels() {
+		return maxOpenChannels;
+	}
+
+	public void setMaxOpenChannels(int maxOpenChannels) {
+		if(maxOpenChannels < 1) throw new IllegalArgumentException("At least one channel has to be allowed.");
+		this.maxOpenChannels = maxOpenChannels;
+	}
+
+	/**
+	 * Leases the channel of a part file. The lease has to be closed after use.
+	 *
+	 * @param part The part number.
+	 * @return The lease.
+	 * @throws IOException If the pool is closed or the part file could not be opened.
+	 */
+	public synchronized Lease acquire(int part) throws IOException {
+		if(closed) throw new IOException("The channel pool is closed.");
+
+		evict(System.currentTimeMillis());
+
+		Slot slot = slots.get(part);
+		if(slot == null || !slot.channel.isOpen()) {
+			File file = apFile.getPartFile(part);
+			if(!file.exists()) throw new FileNotFoundException(file.getAbsolutePath());
+
+			slot = new Slot(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+			slots.put(part, slot);
+		}
+
+		slot.refs++;
+		Lease lease = new Lease(slot, ++leaseSequence);
+		slot.leases.add(lease.sequence);
+		return lease;
+	}
+
+	/**
+	 * @return The sequence number of the last lease. Leases acquired later have a higher one.
+	 */
+	public synchronized long getLeaseSequence() {
+		return leaseSequence;
+	}
+
+	/**
+	 * @param part The part number.
+	 * @param sequence A sequence number, see {@link #getLeaseSequence()}.
+	 * @return true, if a lease of the current channel of the part, which was acquired up to the sequence number, is still open.
+	 */
+	public synchronized boolean isLeased(int part, long sequence) {
+		Slot slot = slots.get(part);
+		return slot != null && !slot.leases.isEmpty() && slot.leases.first() <= sequence;
+	}
+
+	/**
+	 * @return A counter which is incremented whenever a part is invalidated.
+	 * Can be used to detect that cached data of the part files is outdated.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Discards the channel of a part, e.g. because the part file was replaced.
+	 * A channel which is still leased is closed as soon as its last lease is closed.
+	 *
+	 * @param part The part number.
+	 */
+	public synchronized void invalidate(int part) {
+		generation++;
+
+		Slot slot = slots.remove(part);
+		if(slot == null) return;
+
+		slot.stale = true;
+		if(slot.refs <= 0) closeQuietly(slot.channel);
+	}
+
+	/**
+	 * Discards all channels, see {@link #invalidate(int)}.
+	 */
+	public synchronized void invalidateAll() {
+		for(Integer part : new ArrayList<>(slots.keySet())) invalidate(part);
+	}
+
+	/**
+	 * Closes the channels which are idle for longer than the idle timeout.
+	 */
+	public synchronized void evictIdle() {
+		evict(System.currentTimeMillis());
+	}
+
+	private void evict(long now) {
+		Iterator<Slot> it = slots.values().iterator();
+		while(it.hasNext()) {
+			Slot slot = it.next();
+			if(slot.refs <= 0 && now - slot.lastUsed >= idleTimeout) {
+				closeQuietly(slot.channel);
+				it.remove();
+			}
+		}
+
+		if(slots.size() < maxOpenChannels) return;
+
+		List<Map.Entry<Integer, Slot>> idle = new ArrayList<>();
+		for(Map.Entry<Integer, Slot> e : slots.entrySet())
+			if(e.getValue().refs <= 0) idle.add(e);
+
+		idle.sort((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed));
+
+		for (int i = 0; i < idle.size() && slots.size() >= maxOpenChannels; i++) {
+			closeQuietly(idle.get(i).getValue().channel);
+			slots.remove(idle.get(i).getKey());
+		}
+	}
+
+	private synchronized void release(Slot slot, long sequence) {
+		slot.refs--;
+		slot.leases.remove(sequence);
+		slot.lastUsed = System.currentTimeMillis();
+		if((slot.stale || closed) && slot.refs <= 0) closeQuietly(slot.channel);
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for(Slot slot : slots.values()) {
+			slot.stale = true;
+			if(slot.refs <= 0) closeQuietly(slot.channel);
+		}
+		slots.clear();
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static class Slot {
+
+		final FileChannel channel;
+		int refs = 0;
+		long lastUsed = System.currentTimeMillis();
+		boolean stale = false;
+		/** The sequence numbers of the open leases. */
+		final TreeSet<Long> leases = new TreeSet<>();
+
+		Slot(FileChannel channel) {
+			this.channel = channel;
+		}
+
+	}
+
+	/**
+	 * A lease of a pooled channel. Only positional operations are offered, since the channel is shared.
+	 */
+	public class Lease implements Closeable {
+
+		private final Slot slot;
+		private final long sequence;
+		private boolean released = false;
+
+		private Lease(Slot slot, long sequence) {
+			this.slot = slot;
+			this.sequence = sequence;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public FileChannel getChannel() {
+			return slot.channel;
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return slot.channel.read(dst, position);
+		}
+
+		public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			ChannelUtils.transfer(slot.channel, position, count, target);
+		}
+
+		@Override
+		public void close() {
+			if(released) return;
+			released = true;
+			release(slot, sequence);
+		}
+
+	}
+
+}
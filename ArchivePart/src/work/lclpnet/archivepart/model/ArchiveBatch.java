@@ -0,0 +1,359 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.factory.APBuilder;
+import work.lclpnet.archivepart.factory.BuilderState;
+
+/**
+ * A batch of modifications of an archive, which is obtained by {@link ArchivePartFile#beginBatch()}.<br>
+ * <br>
+ * Added files are written to the part files right away, through part streams which are kept open until the end of the batch.
+ * They are placed into the holes of the {@link FreeSpaceMap} if they fit, otherwise they are appended.
+ * The new entries are published, removals and updated modification times are applied and the header is written only once, on {@link #commit()}.
+ * If the batch is closed without being committed, the part files are truncated to their previous length and the used holes are freed again.<br>
+ * <br>
+ * A batch holds the write lock of the archive, so it has to be used and closed by the thread which began it.
+ */
+public class ArchiveBatch implements AutoCloseable {
+
+	private final ArchivePartFile apFile;
+	private final List<ArchiveEntry> added = new ArrayList<>();
+	private final Map<String, ArchiveEntry> addedByPath = new HashMap<>();
+	private final Set<ArchiveEntry> removed = new LinkedHashSet<>();
+	/** The new modification times of entries whose content did not change. */
+	private final Map<ArchiveEntry, Long> modified = new HashMap<>();
+	private final List<Long> partLengths = new ArrayList<>();
+	/** The lengths of the opened part files before the batch, -1 if they did not exist. */
+	private final Map<Integer, Long> initialLengths = new HashMap<>();
+	private final Map<Integer, BuilderState> outputs = new HashMap<>();
+	/** Channels to write into the holes of the free space map, by part. */
+	private final Map<Integer, FileChannel> holeChannels = new HashMap<>();
+	private final List<FreeSpaceMap.Hole> allocated = new ArrayList<>();
+	private boolean done = false;
+
+	ArchiveBatch(ArchivePartFile apFile) {
+		this.apFile = apFile;
+
+		final int maxPart = apFile.getHighestPartFileNumber();
+		for (int i = 1; i <= maxPart; i++)
+			partLengths.add(apFile.getPartFile(i).length());
+	}
+
+	public ArchivePartFile getArchive() {
+		return apFile;
+	}
+
+	/**
+	 * @return The number of entries added in this batch so far.
+	 */
+	public int getAddedCount() {
+		return added.size();
+	}
+
+	public boolean add(File f, String pathInsideArchive) {
+		return add(f, pathInsideArchive, false);
+	}
+
+	/**
+	 * Appends a file to the archive. The entry becomes visible on {@link #commit()}.
+	 *
+	 * @param f The file to add.
+	 * @param pathInsideArchive The path of the new entry.
+	 * @param override True if an existing entry with the same path should be replaced.
+	 * @return true, if the file was added successfully.
+	 */
+	public boolean add(File f, String pathInsideArchive, boolean override) {
+		checkOpen();
+
+		if(f == null || !f.exists()) {
+			System.err.println("\"" + f + "\" does not exist.");
+			return false;
+		}
+
+		return add(f, pathInsideArchive, f.length(), f.lastModified(), override);
+	}
+
+	/**
+	 * Appends a file found by a {@link DirectoryScanner}, using the attributes which were read while scanning.
+	 * The entry becomes visible on {@link #commit()}.
+	 *
+	 * @param file The file to add.
+	 * @param override True if an existing entry with the same path should be replaced.
+	 * @return true, if the file was added successfully.
+	 */
+	public boolean add(ScannedFile file, boolean override) {
+		checkOpen();
+		return add(file.getFile(), file.getPath(), file.getSize(), file.getLastModified(), override);
+	}
+
+	private boolean add(File f, String pathInsideArchive, long length, long lastModified, boolean override) {
+		ArchiveEntry en = addedByPath.get(pathInsideArchive);
+		if(en == null) en = apFile.getArchiveEntryByFile(pathInsideArchive);
+		if(en != null && !removed.contains(en)) {
+			if(override) removed.add(en);
+			else {
+				System.err.println("There is already an entry with path \"" + pathInsideArchive + "\" in this archive.");
+				return false;
+			}
+		}
+
+		FreeSpaceMap.Hole hole = allocateHole(length);
+		if(hole != null) {
+			try {
+				FileChannel channel = getHoleChannel(hole.getPart());
+				channel.position(hole.getOffset());
+
+				BuilderState state = new BuilderState(Channels.newOutputStream(channel), hole.getOffset(), hole.getPart(), apFile.getMaxPartSize(), apFile.getPassword());
+				state.currentChannel = channel;
+
+				return write(state, f, pathInsideArchive, length, lastModified);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		int part = partLengths.size();
+		if(length <= apFile.getMaxPartSize()) { // otherwise the file is rejected by the builder
+			for (int i = 1; i <= partLengths.size(); i++) {
+				if(partLengths.get(i - 1) + length <= apFile.getMaxPartSize()) {
+					part = i;
+					break;
+				}
+			}
+			if(partLengths.get(part - 1) + length > apFile.getMaxPartSize()) {
+				partLengths.add(0L);
+				part = partLengths.size();
+			}
+		}
+
+		BuilderState state;
+		try {
+			state = getOutput(part);
+		} catch (GeneralSecurityException | IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		if(!write(state, f, pathInsideArchive, length, lastModified)) return false;
+		partLengths.set(part - 1, state.currentLength);
+		return true;
+	}
+
+	private boolean write(BuilderState state, File f, String pathInsideArchive, long length, long lastModified) {
+		int before = added.size();
+		if(!APBuilder.write(state, f, pathInsideArchive, length, lastModified, apFile, added)) return false;
+
+		if(added.size() > before) addedByPath.put(pathInsideArchive, added.get(added.size() - 1));
+		return true;
+	}
+
+	private FreeSpaceMap.Hole allocateHole(long length) {
+		FreeSpaceMap freeSpace = apFile.getFreeSpaceMap();
+		if(length <= 0L || freeSpace.isEmpty()) return null;
+
+		//the holes may belong to removals whose header was not written yet
+		if(!apFile.getDurability().barrier()) return null;
+
+		FreeSpaceMap.Hole hole = freeSpace.allocate(length, apFile.getChannelPool()); // not the ranges which older readers may still read
+		if(hole == null) return null;
+
+		if(hole.getOffset() + length > apFile.getMaxPartSize() || !apFile.getPartFile(hole.getPart()).exists()) {
+			freeSpace.free(hole.getPart(), hole.getOffset(), hole.getLength());
+			return null;
+		}
+
+		allocated.add(hole);
+		return hole;
+	}
+
+	private FileChannel getHoleChannel(int part) throws IOException {
+		FileChannel channel = holeChannels.get(part);
+		if(channel == null) {
+			channel = FileChannel.open(apFile.getPartFile(part).toPath(), StandardOpenOption.WRITE);
+			holeChannels.put(part, channel);
+			apFile.getDurability().markDirty(part);
+		}
+		return channel;
+	}
+
+	/**
+	 * Adds the contents of a directory, see {@link ArchivePartFile#addToArchive(File, boolean)}.
+	 *
+	 * @param f The file or directory to add.
+	 * @param rootFolderPrefix True if the directory itself should be created in the root of the archive.
+	 * @param override True if existing entries with the same path should be replaced.
+	 * @return true, if everything was added successfully.
+	 */
+	public boolean addRecursively(File f, boolean rootFolderPrefix, boolean override) {
+		if(f.isFile()) return add(f, "/" + f.getName(), override);
+		return addAll(new DirectoryScanner(f).setPathPrefix(rootFolderPrefix ? "/" + f.getName() : ""), override);
+	}
+
+	/**
+	 * Adds the files of a directory scanner, in the order of {@link DirectoryScanner#walk()}.
+	 *
+	 * @param scanner The scanner of the directory, with its path prefix and filters.
+	 * @param override True if existing entries with the same path should be replaced.
+	 * @return true, if everything was added successfully.
+	 */
+	public boolean addAll(DirectoryScanner scanner, boolean override) {
+		checkOpen();
+
+		try (DirectoryScanner.Walk walk = scanner.walk()) {
+			for(ScannedFile file : walk)
+				if(!add(file, override)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Schedules the removal of an entry. It is removed on {@link #commit()}.
+	 *
+	 * @param entry The entry to remove.
+	 */
+	public void remove(ArchiveEntry entry) {
+		checkOpen();
+		if(entry != null) removed.add(entry);
+	}
+
+	/**
+	 * Schedules an update of the modification time of an entry, whose source file was touched without changing its content.
+	 * The entry is updated on {@link #commit()}, without rewriting its data.
+	 *
+	 * @param entry The entry to update.
+	 * @param lastModified The new modification time.
+	 */
+	public void updateLastModified(ArchiveEntry entry, long lastModified) {
+		checkOpen();
+		if(entry != null && entry.getLastModified() != lastModified) modified.put(entry, lastModified);
+	}
+
+	private BuilderState getOutput(int part) throws GeneralSecurityException, IOException {
+		BuilderState state = outputs.get(part);
+		if(state != null) return state;
+
+		File file = apFile.getPartFile(part);
+		if(!file.exists()) ArchivePart.log("Now writing into \"" + file.getAbsolutePath() + "\" ...");
+
+		initialLengths.put(part, file.exists() ? file.length() : -1L);
+
+		FileOutputStream out = APBuilder.openOutputStream(file, true);
+		state = new BuilderState(new BufferedOutputStream(out), file.length(), part, apFile.getMaxPartSize(), apFile.getPassword());
+		state.currentChannel = out.getChannel();
+		outputs.put(part, state);
+		apFile.getDurability().markDirty(part);
+
+		return state;
+	}
+
+	private boolean closeOutputs() {
+		boolean closed = true;
+		for(BuilderState state : outputs.values()) {
+			try {
+				state.currentOut.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				closed = false;
+			}
+		}
+		outputs.clear();
+
+		for(FileChannel channel : holeChannels.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				closed = false;
+			}
+		}
+		holeChannels.clear();
+
+		return closed;
+	}
+
+	/**
+	 * Publishes the added entries, applies the removals and writes the header.
+	 *
+	 * @return true, if the batch was committed successfully.
+	 */
+	public boolean commit() {
+		checkOpen();
+		done = true;
+
+		try {
+			if(!closeOutputs()) {
+				rollback();
+				return false;
+			}
+
+			if(added.isEmpty() && removed.isEmpty() && modified.isEmpty()) return true;
+
+			apFile.addEntriesLocked(added);
+			apFile.updateLastModifiedLocked(modified);
+
+			boolean success = removed.isEmpty() || apFile.removeEntriesLocked(removed, false);
+
+			apFile.sortEntries();
+			return apFile.updateHeaderFile() && success;
+		} finally {
+			apFile.getWriteLock().unlock();
+		}
+	}
+
+	private void rollback() {
+		for(FreeSpaceMap.Hole hole : allocated)
+			apFile.getFreeSpaceMap().free(hole.getPart(), hole.getOffset(), hole.getLength());
+
+		for(Map.Entry<Integer, Long> e : initialLengths.entrySet()) {
+			File file = apFile.getPartFile(e.getKey());
+			if(e.getValue() < 0L) {
+				if(!file.delete()) System.err.println("Could not delete \"" + file.getAbsolutePath() + "\".");
+				continue;
+			}
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(e.getValue());
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	private void checkOpen() {
+		if(done) throw new IllegalStateException("The batch is already finished.");
+	}
+
+	/**
+	 * Discards the batch, if it was not committed.
+	 */
+	@Override
+	public void close() {
+		if(done) return;
+		done = true;
+
+		try {
+			closeOutputs();
+			rollback();
+		} finally {
+			apFile.getWriteLock().unlock();
+		}
+	}
+
+}
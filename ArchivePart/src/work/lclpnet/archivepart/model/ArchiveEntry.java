@@ -6,17 +6,30 @@ import java.security.GeneralSecurityException;
 public class ArchiveEntry {
 
 	public static final long CRC_UNDEFINED = Long.MIN_VALUE;
+	/** The modification time of entries of headers before version 9, which did not store it. */
+	public static final long MODIFIED_UNDEFINED = Long.MIN_VALUE;
 	
 	private String file;
 	private int part;
-	private long offset, length, crc32;
+	private long offset, length, crc32, nonce, lastModified;
+	private volatile boolean stale = false;
 	
 	public ArchiveEntry(String file, int part, long offset, long length, long crc32) {
+		this(file, part, offset, length, crc32, 0L);
+	}
+	
+	public ArchiveEntry(String file, int part, long offset, long length, long crc32, long nonce) {
+		this(file, part, offset, length, crc32, nonce, MODIFIED_UNDEFINED);
+	}
+	
+	public ArchiveEntry(String file, int part, long offset, long length, long crc32, long nonce, long lastModified) {
 		this.file = file;
 		this.part = part;
 		this.offset = offset;
 		this.length = length;
 		this.crc32 = crc32;
+		this.nonce = nonce;
+		this.lastModified = lastModified;
 	}
 	
 	public String getFile() {
@@ -27,10 +40,44 @@ public class ArchiveEntry {
 		return offset;
 	}
 	
+	/**
+	 * Entries which belong to an {@link ArchivePartFile} must not be modified, since readers share them.
+	 * Use {@link #relocate(int, long)} instead.
+	 * 
+	 * @param offset The new offset.
+	 */
 	public void setOffset(long offset) {
 		this.offset = offset;
 	}
 	
+	/**
+	 * @param part The new part.
+	 * @param offset The new offset.
+	 * @return A copy of this entry at a different position.
+	 */
+	public ArchiveEntry relocate(int part, long offset) {
+		return new ArchiveEntry(getFile(), part, offset, length, crc32, nonce, lastModified);
+	}
+	
+	/**
+	 * @param lastModified The new modification time.
+	 * @return A copy of this entry with a different modification time, e.g. because the source file was touched without changing its content.
+	 */
+	public ArchiveEntry withLastModified(long lastModified) {
+		return new ArchiveEntry(getFile(), part, offset, length, crc32, nonce, lastModified);
+	}
+	
+	/**
+	 * @return true, if this entry was relocated or removed by a writer of its archive. See {@link ArchivePartFile#resolve(ArchiveEntry)}.
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+	
+	void markStale() {
+		this.stale = true;
+	}
+	
 	public int getPart() {
 		return part;
 	}
@@ -43,7 +90,28 @@ public class ArchiveEntry {
 		return crc32;
 	}
 	
-	private String getCrc32HexString() {
+	/**
+	 * @return The checksum of the entry, computed with the {@link ArchivePartFile#getChecksumAlgorithm()} of its archive.
+	 */
+	public long getChecksum() {
+		return crc32;
+	}
+	
+	/**
+	 * @return The nonce of the entry's cipher stream. Only used by {@link work.lclpnet.archivepart.crypto.EncryptionMode#AES_CTR}, 0 otherwise.
+	 */
+	public long getNonce() {
+		return nonce;
+	}
+	
+	/**
+	 * @return The modification time of the source file when it was added, in milliseconds since the epoch. {@link #MODIFIED_UNDEFINED} if it is unknown.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+	
+	private String getChecksumHexString() {
 		if(crc32 == CRC_UNDEFINED) return "undefined";
 		return Long.toHexString(crc32).toUpperCase();
 	}
@@ -57,16 +125,29 @@ public class ArchiveEntry {
 		if(obj == null || !(obj instanceof ArchiveEntry)) return false;
 		ArchiveEntry e = (ArchiveEntry) obj;
 		return 
-				e.file.equals(this.file) && 
+				e.getFile().equals(this.getFile()) && 
 				e.part == this.part && 
 				e.offset == this.offset && 
 				e.length == this.length &&
-				e.crc32 == this.crc32;
+				e.crc32 == this.crc32 &&
+				e.nonce == this.nonce &&
+				e.lastModified == this.lastModified;
+	}
+	
+	@Override
+	public int hashCode() {
+		int result = getFile().hashCode();
+		result = 31 * result + part;
+		result = 31 * result + Long.hashCode(offset);
+		result = 31 * result + Long.hashCode(length);
+		result = 31 * result + Long.hashCode(crc32);
+		result = 31 * result + Long.hashCode(nonce);
+		return 31 * result + Long.hashCode(lastModified);
 	}
 	
 	@Override
 	public String toString() {
-		return "ArchiveEntry{file=\"" + file + "\";part=" + part + ";offset=" + offset + ";length=" + length + ";crc32=" + getCrc32HexString() +  "}";
+		return "ArchiveEntry{file=\"" + getFile() + "\";part=" + part + ";offset=" + offset + ";length=" + length + ";checksum=" + getChecksumHexString() +  "}";
 	}
 
 }
@@ -1,11 +1,13 @@
 package work.lclpnet.archivepart.model;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.io.PartChannelPool;
+
 public class ArchiveEntryInputStream extends InputStream{
 
 	private boolean closed = false;
@@ -13,64 +15,72 @@ public class ArchiveEntryInputStream extends InputStream{
 	
 	private ArchivePartFile apFile;
 	private ArchiveEntry entry;
-	private File file;
-	private InputStream inStream;
+	private PartChannelPool.Lease lease;
+	private StreamCipher cipher;
+	private byte[] single = new byte[1];
 	
 	public ArchiveEntryInputStream(ArchivePartFile desc, ArchiveEntry entry) throws IOException, GeneralSecurityException {
-		this.entry = entry;
 		this.apFile = desc;
-		this.file = this.apFile.getPartFile(entry.getPart());
-		
-		FileInputStream base = new FileInputStream(this.file);
-		base.getChannel().position(entry.getOffset());
+		this.cipher = this.apFile.getCipher();
 		
-		this.inStream = base;
+		PartChannelPool pool = this.apFile.getChannelPool();
+		synchronized (pool) { // the entry has to match the part file the channel belongs to
+			this.entry = this.apFile.resolve(entry);
+			if(this.entry == null) throw new IOException("The entry \"" + entry.getFile() + "\" was removed from the archive.");
+			
+			this.lease = pool.acquire(this.entry.getPart());
+		}
 	}
 	
 	@Override
 	public int read() throws IOException {
-		if(read >= entry.getLength()) return -1;
-		
-		int b = inStream.read();
-		read++;
-		
-		if(apFile.isEncrypted()) {
-			long offset = read - 1;
-			int i = (int) (offset % apFile.getPassword().length());
-			
-			return b ^ apFile.getPassword().charAt(i);
-		} else return b;
+		int readNow = read(single, 0, 1);
+		return readNow == -1 ? -1 : single[0] & 0xFF;
 	}
 	
 	@Override
 	public int read(byte[] b) throws IOException {
-		int length = (int) (entry.getLength() - read);
-		if(length > b.length) length = b.length;
+		return read(b, 0, b.length);
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(closed) throw new IOException("Stream closed.");
+		if(len == 0) return 0;
 		
-		int readNow = inStream.read(b, 0, length);
-		if(read >= entry.getLength() || readNow == -1) return -1;
+		long remaining = entry.getLength() - read;
+		if(remaining <= 0) return -1;
+		if(len > remaining) len = (int) remaining;
 		
+		int readNow = lease.read(ByteBuffer.wrap(b, off, len), entry.getOffset() + read);
+		if(readNow == -1) return -1;
+		
+		if(cipher != null) cipher.apply(b, off, readNow, entry.getNonce(), read);
 		read += readNow;
 		
-		if(apFile.isEncrypted()) {
-			long offset = read - readNow;
-			int ch = (int) (offset % apFile.getPassword().length());
-			char[] pw = apFile.getPassword().toCharArray();
-			
-			for (int i = 0; i < b.length; i++) {
-				if(ch >= pw.length) ch = 0;
-				b[i] ^= pw[ch++];
-			}
-		}
 		return readNow;
 	}
 	
+	@Override
+	public long skip(long n) throws IOException {
+		if(n <= 0) return 0L;
+		
+		long skipped = Math.min(n, entry.getLength() - read);
+		read += skipped;
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, entry.getLength() - read);
+	}
+	
 	@Override
 	public void close() throws IOException {
-		if(closed || inStream == null) return;
+		if(closed || lease == null) return;
 		
-		inStream.close();
-		inStream = null;
+		lease.close();
+		lease = null;
 		closed = true;
 	}
 
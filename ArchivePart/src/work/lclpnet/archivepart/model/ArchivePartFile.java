@@ -1,30 +1,73 @@
 package work.lclpnet.archivepart.model;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FilenameUtils;
 
+import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.checksum.ChecksumAlgorithm;
+import work.lclpnet.archivepart.crypto.AesCtrKeystream;
+import work.lclpnet.archivepart.crypto.EncryptionMode;
+import work.lclpnet.archivepart.crypto.StreamCipher;
+import work.lclpnet.archivepart.crypto.XorKeystream;
 import work.lclpnet.archivepart.factory.APBuilder;
 import work.lclpnet.archivepart.factory.APParser;
 import work.lclpnet.archivepart.factory.BuilderState;
-import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.io.ChannelUtils;
+import work.lclpnet.archivepart.io.DurabilityMode;
+import work.lclpnet.archivepart.io.MappedEntryReader;
+import work.lclpnet.archivepart.io.PartChannelPool;
 
-public class ArchivePartFile {
+public class ArchivePartFile implements AutoCloseable {
 
 	private File baseFile;
 	private String password;
-	private List<ArchiveEntry> entries;
+	private EncryptionMode encryptionMode = EncryptionMode.XOR;
+	private byte[] salt = null;
+	private StreamCipher cipher = null;
+	private final PartChannelPool channelPool = new PartChannelPool(this);
+	/** Immutable snapshot of the entries, replaced as a whole by the writers. */
+	private volatile List<ArchiveEntry> entries;
+	/** The entries by path, maintained by the writers alongside the snapshot. */
+	private final EntryIndex index = new EntryIndex();
+	/** The entries of a parsed header, until they are needed as objects. Then the snapshot and the index are built from it. */
+	private volatile EntryTable table = null;
+	/** True, if the snapshots are {@link CompactEntryList}s, which answer the lookups themselves instead of the index. */
+	private volatile boolean compactEntries = false;
+	private final ReentrantLock writeLock = new ReentrantLock();
 	private long maxPartSize;
+	private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+	private final HeaderJournal journal = new HeaderJournal(this);
+	private final DurabilityManager durability = new DurabilityManager(this);
+	private volatile boolean lazyDeletion = false;
+	private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.CRC32;
 
 	private String baseName;
 	private String extension;
@@ -36,8 +79,10 @@ public class ArchivePartFile {
 	public ArchivePartFile(File baseFile, String password, List<ArchiveEntry> entries, long maxPartSize) {
 		this.baseFile = baseFile;
 		this.password = password;
-		this.entries = entries;
+		this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+		index.rebuild(this.entries);
 		this.maxPartSize = maxPartSize;
+		freeSpace.setJournal(journal);
 
 		baseName = FilenameUtils.getBaseName(baseFile.getName());
 		extension = FilenameUtils.getExtension(baseFile.getName());
@@ -59,29 +104,323 @@ public class ArchivePartFile {
 		return maxPartSize;
 	}
 
+	/**
+	 * @return The algorithm used for the checksums of the entries of this archive.
+	 */
+	public ChecksumAlgorithm getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+	public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+		if(checksumAlgorithm == null) throw new IllegalArgumentException("The checksum algorithm must not be null.");
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+	/**
+	 * @return true, if removed entries are only marked as free space, see {@link #setLazyDeletion(boolean)}.
+	 */
+	public boolean isLazyDeletion() {
+		return lazyDeletion;
+	}
+
+	/**
+	 * Sets the lazy deletion mode, which is stored in the header.
+	 * In this mode, removing an entry only adds its range to the {@link FreeSpaceMap}, instead of compacting the part file.
+	 * New entries are written into these holes, if they fit.<br>
+	 * <br>
+	 * Note that the data of a removed entry can be overwritten by a new entry,
+	 * while an {@link ArchiveEntryInputStream} which was opened before the removal is still reading it.
+	 * 
+	 * @param lazyDeletion True, if removed entries should only be marked as free.
+	 */
+	public void setLazyDeletion(boolean lazyDeletion) {
+		this.lazyDeletion = lazyDeletion;
+	}
+
+	/**
+	 * @return The holes left behind by lazily removed entries. Must only be accessed while holding a batch or in the thread that modifies the archive.
+	 */
+	public FreeSpaceMap getFreeSpaceMap() {
+		return freeSpace;
+	}
+
+	/**
+	 * Returns the current entries of the archive. The returned list is an immutable snapshot;
+	 * it can be used by any thread and is not affected by later modifications of the archive.
+	 * 
+	 * @return An immutable snapshot of the entries.
+	 */
 	public List<ArchiveEntry> getEntries() {
-		return entries;
+		return snapshot();
+	}
+
+	/**
+	 * @return The number of entries. Unlike {@link #getEntries()}, this does not create the entries of a parsed header.
+	 */
+	public int getEntryCount() {
+		EntryTable table = this.table;
+		return table != null ? table.size() : snapshot().size();
+	}
+
+	/**
+	 * Sets the entries of a header, which are looked up in the table directly until they are needed as objects.
+	 * 
+	 * @param table The entries of the header.
+	 */
+	public void setEntryTable(EntryTable table) {
+		if(table == null) throw new IllegalArgumentException("The given table is null!");
+
+		writeLock.lock();
+		try {
+			synchronized (channelPool) {
+				if(entries instanceof CompactEntryList) ((CompactEntryList) entries).supersede(null);
+				this.table = table;
+				this.entries = null;
+				index.rebuild(Collections.emptyList());
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private List<ArchiveEntry> snapshot() {
+		List<ArchiveEntry> list = entries;
+		if(list != null) return list;
+
+		synchronized (channelPool) {
+			if(entries == null) {
+				if(compactEntries) {
+					publish(CompactEntryList.of(table));
+					return entries;
+				}
+
+				List<ArchiveEntry> materialized = table.readAll();
+				sort(materialized);
+				index.rebuild(materialized);
+				publish(materialized);
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * @return The index, after the entries of a parsed header were created. The compact snapshot, if the entries are compact.
+	 */
+	private EntryLookup index() {
+		List<ArchiveEntry> list = snapshot();
+		return list instanceof CompactEntryList ? (CompactEntryList) list : index;
+	}
+
+	/**
+	 * Switches between the compact and the default representation of the entries.<br>
+	 * <br>
+	 * By default, every entry is an object and the entries are indexed by path in hash and sorted maps.
+	 * Compact entries are stored in primitive columns with a shared byte array of the paths and a sorted index of positions,
+	 * which needs a fraction of the heap and hardly any objects for the garbage collector to trace.
+	 * The entries returned by the archive are lightweight views then, which are created for every access.
+	 * Modifications copy the columns, like the default representation copies the list.
+	 * It should be enabled before the entries are used, e.g. by {@link APParser#setCompactEntries(boolean)}.
+	 * Entries which were returned before become stale, see {@link #resolve(ArchiveEntry)}.
+	 * 
+	 * @param compact True, if the entries should be stored compactly.
+	 */
+	public void setCompactEntries(boolean compact) {
+		writeLock.lock();
+		try {
+			synchronized (channelPool) {
+				if(compactEntries == compact) return;
+
+				if(compact && table != null) { // the compact list is created from the table, when it is needed
+					compactEntries = true;
+					index.setEnabled(false);
+					return;
+				}
+
+				List<ArchiveEntry> current = new ArrayList<>(snapshot());
+				if(compact) current.forEach(ArchiveEntry::markStale);
+
+				compactEntries = compact;
+				index.setEnabled(!compact);
+				publish(current);
+				index.rebuild(entries);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean isCompactEntries() {
+		return compactEntries;
 	}
 
 	public void setEntries(List<ArchiveEntry> entries) {
-		this.entries = entries;
+		writeLock.lock();
+		try {
+			publish(new ArrayList<>(entries));
+			index.rebuild(this.entries);
+			journal.requireCheckpoint();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the entries with the state restored from the journal.
+	 */
+	void restoreEntries(List<ArchiveEntry> entries) {
+		writeLock.lock();
+		try {
+			sort(entries);
+			publish(entries);
+			index.rebuild(this.entries);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
 	public void addEntry(ArchiveEntry e) {
-		if(e != null && !entries.contains(e)) entries.add(e);
+		if(e != null) addEntries(Collections.singletonList(e));
+	}
+
+	/**
+	 * Adds multiple entries at once, publishing only one new snapshot.
+	 * 
+	 * @param added The entries to add. Entries which are already present are skipped.
+	 */
+	public void addEntries(Collection<ArchiveEntry> added) {
+		writeLock.lock();
+		try {
+			addEntriesLocked(added);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	void addEntriesLocked(Collection<ArchiveEntry> added) {
+		List<ArchiveEntry> entries = snapshot();
+		List<ArchiveEntry> list = new ArrayList<>(entries.size() + added.size());
+		list.addAll(entries);
+
+		//a compact snapshot looks up its entries by path, instead of hashing all of them
+		boolean compact = entries instanceof CompactEntryList;
+		Set<ArchiveEntry> present = compact ? new HashSet<>() : new HashSet<>(list);
+		List<ArchiveEntry> indexed = new ArrayList<>(added.size());
+		for(ArchiveEntry e : added)
+			if(e != null && !(compact && entries.contains(e)) && present.add(e)) {
+				list.add(e);
+				indexed.add(e);
+			}
+
+		publish(list);
+		indexed.forEach(index::add);
+		indexed.forEach(journal::recordAdd);
+	}
+
+	/**
+	 * Replaces entries by copies with a new modification time, e.g. if a sync found that their source file was touched, but not changed.
+	 * Must be called while holding the write lock.
+	 *
+	 * @param modified The new modification times, by entry. Entries which are not present anymore are skipped.
+	 */
+	void updateLastModifiedLocked(Map<ArchiveEntry, Long> modified) {
+		if(modified.isEmpty()) return;
+
+		List<ArchiveEntry> entries = snapshot();
+		List<ArchiveEntry> list = new ArrayList<>(entries.size());
+		Map<ArchiveEntry, ArchiveEntry> replaced = new HashMap<>();
+		for(ArchiveEntry e : entries) {
+			Long time = modified.get(e);
+			if(time != null && time != e.getLastModified()) {
+				ArchiveEntry touched = e.withLastModified(time);
+				replaced.put(e, touched);
+				e = touched;
+			}
+			list.add(e);
+		}
+
+		if(!replaced.isEmpty()) publish(list, Collections.emptyList(), replaced, Collections.emptyList());
+	}
+
+	private void publish(List<ArchiveEntry> list) {
+		List<ArchiveEntry> previous = this.entries;
+		List<ArchiveEntry> next = compactEntries ? CompactEntryList.of(list, previous instanceof CompactEntryList ? (CompactEntryList) previous : null) : Collections.unmodifiableList(list);
+		if(previous instanceof CompactEntryList) ((CompactEntryList) previous).supersede(next instanceof CompactEntryList ? (CompactEntryList) next : null);
+
+		this.entries = next;
+		this.table = null;
+	}
+
+	/**
+	 * Returns the current version of an entry. Entries of older snapshots become stale,
+	 * if a writer relocates or removes them.
+	 * 
+	 * @param entry An entry of this archive, possibly from an older snapshot.
+	 * @return The given entry if it is not stale, otherwise the current entry with the same path or null if there is none.
+	 */
+	public ArchiveEntry resolve(ArchiveEntry entry) {
+		if(entry == null || !entry.isStale()) return entry;
+		return getArchiveEntryByFile(entry.getFile());
 	}
 
 	public String getPassword() {
 		return password;
 	}
 
+	/**
+	 * @return The encryption mode, only meaningful if the archive {@link #isEncrypted()}.
+	 */
+	public EncryptionMode getEncryptionMode() {
+		return encryptionMode;
+	}
+
+	/**
+	 * @return The salt used to derive the key, or null if the encryption mode does not use one.
+	 */
+	public byte[] getSalt() {
+		return salt;
+	}
+
+	/**
+	 * Sets the encryption mode of this archive. It must not be changed after data was written.
+	 * 
+	 * @param encryptionMode The encryption mode.
+	 * @param salt The salt to derive the key with. If null and the mode requires a salt, a new random salt is generated.
+	 */
+	public synchronized void setEncryption(EncryptionMode encryptionMode, byte[] salt) {
+		if(encryptionMode == null) throw new IllegalArgumentException("The encryption mode must not be null.");
+		if(salt == null && encryptionMode == EncryptionMode.AES_CTR) salt = AesCtrKeystream.newSalt();
+
+		this.encryptionMode = encryptionMode;
+		this.salt = salt;
+		this.cipher = null;
+	}
+
+	/**
+	 * @return The cipher of this archive, or null if the archive is not encrypted.
+	 * @throws GeneralSecurityException If the key could not be derived.
+	 */
+	public synchronized StreamCipher getCipher() throws GeneralSecurityException {
+		if(cipher == null && password != null) {
+			if(encryptionMode == EncryptionMode.AES_CTR) cipher = new AesCtrKeystream(password, salt);
+			else cipher = new XorKeystream(password);
+		}
+		return cipher;
+	}
+
 	public boolean isEncrypted() {
 		return password != null;
 	}
 
 	public int getHighestPartFileNumber() {
-		int max = 1;
-		for(ArchiveEntry e : entries) 
+		int max = Math.max(1, freeSpace.getHighestPart());
+
+		EntryTable table = this.table;
+		if(table != null) return Math.max(max, table.getHighestPart());
+
+		List<ArchiveEntry> list = snapshot();
+		if(list instanceof CompactEntryList) return Math.max(max, ((CompactEntryList) list).getHighestPart());
+
+		for(ArchiveEntry e : list) 
 			if(e.getPart() > max) max = e.getPart();
 		return max;
 	}
@@ -96,45 +435,239 @@ public class ArchivePartFile {
 		return new ArchiveEntryInputStream(this, entry);
 	}
 
+	/**
+	 * @return The pool of the read channels of the part files.
+	 */
+	public PartChannelPool getChannelPool() {
+		return channelPool;
+	}
+
+	/**
+	 * Closes all pooled part channels of this archive.
+	 */
+	@Override
+	public void close() {
+		durability.close();
+		channelPool.close();
+	}
+
+	/**
+	 * @return A new reader which accesses the entries of this archive through memory mapped part files.
+	 */
+	public MappedEntryReader openMappedReader() {
+		return new MappedEntryReader(this);
+	}
+
+	/**
+	 * Writes the decrypted contents of an entry to a channel.
+	 * If the archive is not encrypted, the data is transferred with {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)},
+	 * so that it does not need to pass through the JVM heap.
+	 * 
+	 * @param entry The entry to transfer.
+	 * @param target The channel to write to.
+	 * @throws IOException If an I/O error occurred.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public void transferTo(ArchiveEntry entry, WritableByteChannel target) throws IOException, GeneralSecurityException {
+		if(entry == null) throw new IllegalArgumentException("The given entry is null! Cannot transfer...");
+
+		if(isEncrypted()) {
+			try (ArchiveEntryInputStream in = getInputStream(entry)) {
+				ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+				int read;
+				while((read = in.read(buf.array())) != -1) {
+					buf.clear().limit(read);
+					while(buf.hasRemaining()) target.write(buf);
+				}
+			}
+			return;
+		}
+
+		try (PartChannelPool.Lease lease = channelPool.acquire(entry.getPart())) {
+			lease.transferTo(entry.getOffset(), entry.getLength(), target);
+		}
+	}
+
 	public ArchiveEntry getArchiveEntryByFile(String file) {
 		if(file == null) throw new IllegalArgumentException("The given file path is null! Cannot retrieve entry...");
 
-		for(ArchiveEntry entry : entries) 
-			if(entry.getFile().equals(file)) 
-				return entry;
+		EntryTable table = this.table;
+		if(table != null) return table.get(file);
 
-		return null;
+		return index().get(file);
 	}
 	
+	/**
+	 * @param prefix The path prefix.
+	 * @return The entries whose path starts with the prefix, sorted by path.
+	 */
 	public List<ArchiveEntry> getArchiveEntriesByPrefix(String prefix) {
 		if(prefix == null) throw new IllegalArgumentException("The given file prefix is null! Cannot retrieve entries...");
-		
-		List<ArchiveEntry> gathered = new ArrayList<>();
-		
-		for(ArchiveEntry entry : entries) {
-			if(entry.getFile().startsWith(prefix))
-				gathered.add(entry);
-		}
-		
-		return gathered;
+		EntryTable table = this.table;
+		if(table != null) return table.getByPrefix(prefix);
+
+		return index().getByPrefix(prefix);
+	}
+
+	/**
+	 * @param prefix The path prefix.
+	 * @return true, if there is at least one entry whose path starts with the prefix.
+	 */
+	public boolean hasArchiveEntriesByPrefix(String prefix) {
+		if(prefix == null) throw new IllegalArgumentException("The given file prefix is null! Cannot retrieve entries...");
+		EntryTable table = this.table;
+		if(table != null) return table.hasPrefix(prefix);
+
+		return index().hasPrefix(prefix);
+	}
+
+	/**
+	 * Lists the immediate children of a directory inside the archive, without visiting the entries of its sub directories.
+	 * 
+	 * @param directory The path of the directory, e.g. "/" or "/folder".
+	 * @return The sorted paths of the children. Paths of sub directories end with a slash.
+	 */
+	public List<String> getChildren(String directory) {
+		if(directory == null) throw new IllegalArgumentException("The given directory is null! Cannot retrieve children...");
+		return index().getChildren(directory.endsWith("/") ? directory : directory + "/");
+	}
+
+	/**
+	 * Selects entries by a glob pattern, which has to match the whole path.
+	 * <code>*</code> matches inside a directory, <code>**</code> across directories and <code>?</code> a single character.
+	 * Character classes like <code>[abc]</code> and alternatives like <code>{a,b}</code> are supported as well.
+	 * Only the entries starting with the literal part of the glob are visited.
+	 * 
+	 * @param glob The glob, e.g. "/images/**.png".
+	 * @return The matching entries, sorted by path.
+	 */
+	public List<ArchiveEntry> getArchiveEntriesByGlob(String glob) {
+		if(glob == null) throw new IllegalArgumentException("The given glob is null! Cannot retrieve entries...");
+		return index().getByGlob(glob);
+	}
+
+	/**
+	 * @param pattern A regular expression, which has to match the whole path.
+	 * @return The matching entries, sorted by path.
+	 */
+	public List<ArchiveEntry> getArchiveEntriesByPattern(Pattern pattern) {
+		if(pattern == null) throw new IllegalArgumentException("The given pattern is null! Cannot retrieve entries...");
+		return index().getByPattern(pattern);
 	}
 
 	public boolean setMaxPartSize(long maxPartSize) {
-		long before = this.maxPartSize;
-		this.maxPartSize = maxPartSize;
+		writeLock.lock();
+		try {
+			long before = this.maxPartSize;
+			this.maxPartSize = maxPartSize;
 
-		boolean written = updateHeaderFile();
+			boolean written = updateHeaderFile();
 
-		if(!written) this.maxPartSize = before;
-		return written;
+			if(!written) this.maxPartSize = before;
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Commits the modifications, which are persisted according to the {@link DurabilityManager}.
+	 */
+	boolean updateHeaderFile() {
+		return durability.commit();
+	}
+
+	/**
+	 * Persists the modifications, by appending them to the journal if it is enabled, otherwise by a checkpoint.
+	 */
+	boolean writeHeader() {
+		if(journal.append()) return true;
+		return writeCheckpoint();
+	}
+
+	/**
+	 * Writes the header completely and starts a new journal.
+	 * 
+	 * @return true, if the header was written.
+	 */
+	public boolean checkpoint() {
+		writeLock.lock();
+		try {
+			journal.requireCheckpoint();
+			durability.requireFlush();
+			return durability.commit();
+		} finally {
+			writeLock.unlock();
+		}
 	}
 
-	private boolean updateHeaderFile() {
+	private boolean writeCheckpoint() {
 		BuilderState state = new BuilderState(null, 0L, 0, 0L, password); // only 'password' will be used
-		boolean written = APBuilder.writeSummary(state, this);
+		boolean written = APBuilder.writeSummary(state, this); // creates the id of the new header
+
+		if(written) journal.reset(journal.getId());
 		return written;
 	}
 
+	/**
+	 * @return The journal of the header, see {@link HeaderJournal}.
+	 */
+	public HeaderJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Enables the journaled header mode, see {@link HeaderJournal}. Modifications are appended to the journal,
+	 * until it contains the maximum number of records or bytes. Then the header is written completely.
+	 * 
+	 * @param maxRecords The maximum number of records in the journal, 0 disables the journal.
+	 * @param maxBytes The maximum size of the journal file.
+	 */
+	public void setJournal(int maxRecords, long maxBytes) {
+		writeLock.lock();
+		try {
+			journal.configure(maxRecords, maxBytes);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return The durability settings of the archive, see {@link DurabilityManager}.
+	 */
+	public DurabilityManager getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets when the modifications are forced to the storage device, see {@link DurabilityManager}.
+	 * Group commits are written after 64 operations or one second.
+	 * 
+	 * @param mode The durability mode.
+	 * @return false, if the pending operations could not be written.
+	 */
+	public boolean setDurability(DurabilityMode mode) {
+		return setDurability(mode, 64, 1000L);
+	}
+
+	/**
+	 * Sets when the modifications are forced to the storage device, see {@link DurabilityManager}.
+	 * Operations which were not written yet are written before the mode changes.
+	 * 
+	 * @param mode The durability mode.
+	 * @param maxOperations The number of operations after which a group commit is written.
+	 * @param interval The time in milliseconds after which a group commit is written.
+	 * @return false, if the pending operations could not be written.
+	 */
+	public boolean setDurability(DurabilityMode mode, int maxOperations, long interval) {
+		writeLock.lock();
+		try {
+			return durability.configure(mode, maxOperations, interval);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
 	/**
 	 * Adds the contents of the directory to the root of the archive.<br>
 	 * <br>
@@ -175,20 +708,11 @@ public class ArchivePartFile {
 			System.err.println("\"" + f.getAbsolutePath() + "\" does not exist.");
 			return false;
 		}
-		if(f.isFile()) return addToArchive(f, "/" + f.getName(), override);
-		else return addToArchiveRecursively(f, f, false, override);
-	}
 
-	private boolean addToArchiveRecursively(File f, File root, boolean rootFolderPrefix, boolean override) {
-		if(f.isDirectory()) {
-			for(File children : f.listFiles()) 
-				if(!addToArchiveRecursively(children, root, rootFolderPrefix, override)) return false;
-
-			return true;
+		try (ArchiveBatch batch = beginBatch()) {
+			boolean added = batch.addRecursively(f, false, override);
+			return batch.commit() && added;
 		}
-
-		String path = f.getAbsolutePath().substring((rootFolderPrefix ? root.getParentFile() : root).getAbsolutePath().length()).replace(File.separatorChar, '/');
-		return addToArchive(f, path, override);
 	}
 
 	/**
@@ -226,7 +750,31 @@ public class ArchivePartFile {
 		if(folder.isFile()) throw new IllegalArgumentException("\"" + folder.getAbsolutePath() + "\" is not a directory!");
 		if(folder.listFiles() == null || folder.listFiles().length <= 0) return true;
 
-		return addToArchiveRecursively(folder, folder, true, override);
+		try (ArchiveBatch batch = beginBatch()) {
+			boolean added = batch.addRecursively(folder, true, override);
+			return batch.commit() && added;
+		}
+	}
+
+	/**
+	 * Adds the files found by a directory scanner, in one batch.
+	 * The path prefix of the scanner determines where its root directory is placed inside the archive.
+	 * 
+	 * @param scanner The scanner of the directory, with its filters.
+	 * @param override True if existing entries with the same path should be replaced.
+	 * @return true, if everything was added successfully.
+	 */
+	public boolean addToArchive(DirectoryScanner scanner, boolean override) {
+		try (ArchiveBatch batch = beginBatch()) {
+			boolean added = batch.addAll(scanner, override);
+			return batch.commit() && added;
+		}
+	}
+
+	public boolean addToArchive(ScannedFile file, boolean override) {
+		try (ArchiveBatch batch = beginBatch()) {
+			return batch.add(file, override) && batch.commit();
+		}
 	}
 
 	public boolean addToArchive(File f, String pathInsideArchive) {
@@ -234,112 +782,486 @@ public class ArchivePartFile {
 	}
 	
 	public boolean addToArchive(File f, String pathInsideArchive, boolean override) {
-		if(f == null || !f.exists()) {
-			System.err.println("\"" + f + "\" does not exist.");
-			return false;
+		try (ArchiveBatch batch = beginBatch()) {
+			return batch.add(f, pathInsideArchive, override) && batch.commit();
 		}
-		
-		ArchiveEntry en = getArchiveEntryByFile(pathInsideArchive);
-		if(en != null) {
-			if(override) removeEntry(en); 
-			else {
-				System.err.println("There is already an entry with path \"" + pathInsideArchive + "\" in this archive.");
-				return false;
-			}
+	}
+
+	/**
+	 * Begins a batch of modifications, which writes the header only once on {@link ArchiveBatch#commit()}.
+	 * The batch holds the write lock of this archive until it is committed or closed.
+	 * 
+	 * @return The new batch.
+	 */
+	public ArchiveBatch beginBatch() {
+		writeLock.lock();
+		return new ArchiveBatch(this);
+	}
+
+	ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+
+	/**
+	 * Removes an entry and its data from the archive. The part file of the entry is compacted,
+	 * the entries behind it are relocated and the header is rewritten.
+	 * 
+	 * @param entry The entry to remove, possibly from an older snapshot.
+	 * @return true, if the entry was removed.
+	 */
+	public boolean removeEntry(ArchiveEntry entry) {
+		if(entry == null) return true;
+
+		writeLock.lock();
+		try {
+			return removeEntryLocked(entry, true);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes multiple entries and their data from the archive. Every affected part file is compacted only once,
+	 * skipping all removed ranges in one pass. Afterwards, the entries are relocated and the header is rewritten once.
+	 * 
+	 * @param removed The entries to remove, possibly from an older snapshot. Entries which are not part of the archive are skipped.
+	 * @return true, if the entries were removed.
+	 */
+	public boolean removeEntries(Collection<ArchiveEntry> removed) {
+		writeLock.lock();
+		try {
+			return removeEntriesLocked(removed, true);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	boolean removeEntryLocked(ArchiveEntry entry, boolean writeHeader) {
+		entry = resolve(entry);
+		if(entry == null || !snapshot().contains(entry)) return false;
+
+		return removeEntriesLocked(Collections.singleton(entry), writeHeader);
+	}
+
+	boolean removeEntriesLocked(Collection<ArchiveEntry> removed, boolean writeHeader) {
+		List<ArchiveEntry> entries = snapshot();
+		Set<ArchiveEntry> victims = new HashSet<>();
+		for(ArchiveEntry e : removed) {
+			e = resolve(e);
+			if(e != null) victims.add(e);
+		}
+
+		//the victims of every part, sorted by offset
+		Map<Integer, List<ArchiveEntry>> byPart = new TreeMap<>();
+		List<ArchiveEntry> removedInstances = new ArrayList<>();
+		for(ArchiveEntry en : entries) {
+			if(!victims.contains(en)) continue;
+
+			byPart.computeIfAbsent(en.getPart(), part -> new ArrayList<>()).add(en);
+			removedInstances.add(en);
 		}
+		if(removedInstances.isEmpty()) return true;
+
+		if(lazyDeletion) {
+			List<ArchiveEntry> list = new ArrayList<>(entries.size());
+			for(ArchiveEntry en : entries)
+				if(!victims.contains(en)) list.add(en);
 
-		final int maxPart = getHighestPartFileNumber();
-		
-		int currentPart = maxPart;
-		for (int i = 1; i <= maxPart; i++) {
-			File check = new File(baseFile.getParentFile(), FilenameUtils.getBaseName(baseFile.getName()) + "." + i + "." + extension);
-			if(check.length() + f.length() <= maxPartSize) {
-				currentPart = i;
-				break;
+			//readers which resolved the entries before they were published as removed hold a lease up to this sequence number
+			long lease;
+			synchronized (channelPool) {
+				publish(list, removedInstances, Collections.emptyMap(), Collections.emptySet());
+				lease = channelPool.getLeaseSequence();
 			}
+
+			for(ArchiveEntry en : removedInstances)
+				freeSpace.free(en.getPart(), en.getOffset(), en.getLength(), lease);
+
+			return !writeHeader || updateHeaderFile();
 		}
-		
-		File currentFile = new File(baseFile.getParentFile(), FilenameUtils.getBaseName(baseFile.getName()) + "." + currentPart + "." + extension);
-		if(!currentFile.exists()) ArchivePart.log("Now writing into \"" + currentFile.getAbsolutePath() + "\" ..."); // if the archive has no entries
-		OutputStream currentOut;
+
+		Map<Integer, File> compacted = new HashMap<>();
+		Map<Integer, long[]> offsets = new HashMap<>(), shifts = new HashMap<>();
 		try {
-			currentOut = APBuilder.openOutputStream(currentFile, true);
-		} catch (GeneralSecurityException | IOException e) {
+			for(Map.Entry<Integer, List<ArchiveEntry>> e : byPart.entrySet()) {
+				//the ranges to drop, including the holes left by earlier lazy removals
+				List<long[]> ranges = new ArrayList<>();
+				for(ArchiveEntry en : e.getValue()) ranges.add(new long[] {en.getOffset(), en.getLength()});
+				for(FreeSpaceMap.Hole hole : freeSpace.getHoles(e.getKey())) ranges.add(new long[] {hole.getOffset(), hole.getLength()});
+				ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+				File source = getPartFile(e.getKey());
+				if(!source.exists()) continue;
+
+				File target = new File(source.getParentFile(), source.getName() + ".tmp");
+				compact(source, target, ranges);
+				compacted.put(e.getKey(), target);
+				durability.sync(target);
+
+				//the removed bytes in front of each range, including it
+				long[] victimOffsets = new long[ranges.size()], victimShifts = new long[ranges.size()];
+				long shift = 0L;
+				for (int i = 0; i < victimOffsets.length; i++) {
+					victimOffsets[i] = ranges.get(i)[0];
+					shift += ranges.get(i)[1];
+					victimShifts[i] = shift;
+				}
+				offsets.put(e.getKey(), victimOffsets);
+				shifts.put(e.getKey(), victimShifts);
+			}
+
+			List<ArchiveEntry> list = new ArrayList<>(entries.size());
+			Map<ArchiveEntry, ArchiveEntry> relocated = new IdentityHashMap<>();
+
+			for(ArchiveEntry en : entries) {
+				if(victims.contains(en)) continue;
+
+				long shift = 0L;
+				long[] victimOffsets = offsets.get(en.getPart());
+				if(victimOffsets != null) {
+					int i = Arrays.binarySearch(victimOffsets, en.getOffset() - 1L); // the victims in front of the entry
+					if(i < 0) i = -i - 2;
+					else while(i + 1 < victimOffsets.length && victimOffsets[i + 1] == victimOffsets[i]) i++;
+
+					if(i >= 0) shift = shifts.get(en.getPart())[i];
+				}
+
+				if(shift > 0L) {
+					ArchiveEntry moved = en.relocate(en.getPart(), en.getOffset() - shift);
+					list.add(moved);
+					relocated.put(en, moved);
+				} else list.add(en);
+			}
+
+			sort(list);
+
+			if(!durability.barrier()) throw new IOException("The pending operations could not be written.");
+
+			synchronized (channelPool) { // readers must not open the compacted part files with the old entries
+				for(Map.Entry<Integer, File> e : compacted.entrySet()) {
+					ArchivePart.replace(e.getValue(), getPartFile(e.getKey()));
+					freeSpace.clear(e.getKey());
+				}
+
+				publish(list, removedInstances, relocated, compacted.keySet());
+			}
+
+			//the stored header refers to the old part files, so the new one has to be written right away
+			durability.syncDirectory();
+			durability.requireFlush();
+
+			return !writeHeader || updateHeaderFile();
+		} catch (IOException e) {
 			e.printStackTrace();
+			compacted.values().forEach(File::delete);
 			return false;
 		}
+	}
+
+	/**
+	 * Copies a part file, except for the given ranges, which are sorted by offset.
+	 */
+	private static void compact(File source, File target, List<long[]> removed) throws IOException {
+		try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long position = 0L;
+			for(long[] range : removed) {
+				if(range[0] > position) ChannelUtils.transfer(in, position, range[0] - position, out);
+				position = Math.max(position, range[0] + range[1]);
+			}
+
+			long size = in.size();
+			if(size > position) ChannelUtils.transfer(in, position, size - position, out);
+		}
+	}
 
-		BuilderState state = new BuilderState(currentOut, currentFile.length(), currentPart, maxPartSize, password);
+	/**
+	 * @return The usage of every part file, sorted by part.
+	 */
+	public List<PartStatistics> getPartStatistics() {
+		List<ArchiveEntry> entries = snapshot();
+		final int highest = getHighestPartFileNumber();
+		long[] live = new long[highest + 1];
+		int[] count = new int[highest + 1];
+		for(ArchiveEntry e : entries) {
+			live[e.getPart()] += e.getLength();
+			count[e.getPart()]++;
+		}
 
-		if(!APBuilder.write(state, f, pathInsideArchive, this)) return false;
+		List<PartStatistics> stats = new ArrayList<>(highest);
+		for (int part = 1; part <= highest; part++)
+			stats.add(new PartStatistics(part, getPartFile(part).length(), live[part], count[part], maxPartSize));
 
-		sortEntries();
-		
-		return APBuilder.writeSummary(state, this);
+		return stats;
 	}
 
-	public boolean removeEntry(ArchiveEntry entry) {
-		if(entry == null) return true;
-		
-		File source = getPartFile(entry.getPart());
-		if(!source.exists()) return false;
-
-		File target = new File(source.getParentFile(), source.getName() + ".tmp");
-
-		final long lengthBefore = entry.getOffset();
-		final long lengthAfter = source.length() - lengthBefore - entry.getLength();
-		
-		try (RandomAccessFile raf = new RandomAccessFile(source, "r");
-				BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
-			final int maxBufferSize = 8 * 1024; //8KB
-
-			long remain = lengthBefore;
-			while(remain > 0) {
-				int bufferSize = remain > maxBufferSize ? maxBufferSize : (int) remain;
-				byte[] buf = new byte[bufferSize];
-				if(raf.read(buf, 0, bufferSize) != -1) out.write(buf, 0, bufferSize);
-				remain -= bufferSize;
+	/**
+	 * Rewrites the part files with a fragmentation of at least the given threshold and merges under-filled parts,
+	 * see {@link ArchiveRepacker}.
+	 * 
+	 * @param threshold The fragmentation threshold, from 0 to 1.
+	 * @param threads The number of parts to write concurrently.
+	 * @return true, if the archive was repacked successfully.
+	 */
+	public boolean repack(double threshold, int threads) {
+		return new ArchiveRepacker(this)
+				.setThreshold(threshold)
+				.setThreads(threads)
+				.repack();
+	}
+
+	/**
+	 * Re-slices the existing part files to a new maximum part size, see {@link ArchiveRepacker#resize(long)}.
+	 * In contrast to {@link #setMaxPartSize(long)}, the stored data is moved as well.
+	 * 
+	 * @param maxPartSize The new maximum part size, in bytes.
+	 * @param threads The number of parts to write concurrently.
+	 * @return true, if the archive was resized successfully.
+	 */
+	public boolean resize(long maxPartSize, int threads) {
+		return new ArchiveRepacker(this)
+				.setThreads(threads)
+				.resize(maxPartSize);
+	}
+
+	boolean applyRewrite(Map<Integer, File> rewritten, Collection<Integer> deleted, Map<ArchiveEntry, ArchiveEntry> relocated) throws IOException {
+		return applyRewrite(rewritten, deleted, relocated, maxPartSize);
+	}
+
+	/**
+	 * Swaps in rewritten part files and publishes the relocated entries. Must be called while holding the write lock.
+	 * The rewritten files have to be forced according to the {@link DurabilityManager} already.<br>
+	 * <br>
+	 * The replaced and deleted part files are kept as <code>&lt;part&gt;.bak</code> until the header which refers to the new ones is written.
+	 * If it cannot be written, the old part files and entries are restored. The swap is recorded in {@link #getRewriteFile()} beforehand,
+	 * so a swap which was interrupted by a crash is finished or reverted by {@link #recoverRewrite()}.
+	 * 
+	 * @param rewritten The new files of the rewritten parts.
+	 * @param deleted The parts which no longer contain any entries.
+	 * @param relocated The entries which were moved, mapped to their new version.
+	 * @param maxPartSize The maximum part size the parts were written for.
+	 * @return true, if the header was written.
+	 * @throws IOException If a part file could not be replaced. Then the old part files are restored.
+	 */
+	boolean applyRewrite(Map<Integer, File> rewritten, Collection<Integer> deleted, Map<ArchiveEntry, ArchiveEntry> relocated, long maxPartSize) throws IOException {
+		List<ArchiveEntry> entries = snapshot();
+		List<ArchiveEntry> list = new ArrayList<>(entries.size());
+		for(ArchiveEntry e : entries) {
+			ArchiveEntry moved = relocated.get(e);
+			list.add(moved != null ? moved : e);
+		}
+		sort(list);
+
+		Set<Integer> parts = new HashSet<>(rewritten.keySet());
+		parts.addAll(deleted);
+
+		if(!durability.barrier()) return false;
+
+		//part -> whether the part file existed before
+		Map<Integer, Boolean> swapped = new TreeMap<>();
+		Map<Integer, List<FreeSpaceMap.Hole>> holes = new HashMap<>();
+		for(int part : parts) {
+			swapped.put(part, getPartFile(part).exists());
+			holes.put(part, freeSpace.getHoles(part));
+		}
+		final long previousMaxPartSize = this.maxPartSize;
+
+		writeRewriteFile(swapped);
+
+		synchronized (channelPool) { // readers must not open the rewritten part files with the old entries
+			try {
+				for(int part : parts) {
+					File file = getPartFile(part);
+					if(file.exists()) ArchivePart.replace(file, getBackupFile(part));
+				}
+
+				for(Map.Entry<Integer, File> e : rewritten.entrySet())
+					ArchivePart.replace(e.getValue(), getPartFile(e.getKey()));
+			} catch (IOException e) {
+				restoreParts(swapped);
+				parts.forEach(channelPool::invalidate);
+				finishRewrite(Collections.emptySet());
+				throw e;
 			}
-			
-			raf.seek(entry.getOffset() + entry.getLength());
-			
-			remain = lengthAfter;
-			while(remain > 0) {
-				int bufferSize = remain > maxBufferSize ? maxBufferSize : (int) remain;
-				byte[] buf = new byte[bufferSize];
-				if(raf.read(buf, 0, bufferSize) != -1) out.write(buf, 0, bufferSize);
-				remain -= bufferSize;
+
+			parts.forEach(freeSpace::clear);
+			this.maxPartSize = maxPartSize;
+			journal.requireCheckpoint(); // the new header has to get a new id, see recoverRewrite()
+			publish(list, Collections.emptyList(), relocated, parts);
+		}
+
+		durability.syncDirectory();
+		durability.requireFlush();
+		if(updateHeaderFile()) {
+			finishRewrite(parts);
+			return true;
+		}
+
+		System.err.println("Could not write the header, restoring the old part files...");
+		synchronized (channelPool) {
+			restoreParts(swapped);
+
+			Map<ArchiveEntry, ArchiveEntry> restored = new HashMap<>();
+			List<ArchiveEntry> previous = new ArrayList<>(entries.size());
+			for(ArchiveEntry e : entries) {
+				ArchiveEntry moved = relocated.get(e);
+				if(moved != null) { // the old entry is stale now, so it is replaced by a copy
+					e = e.relocate(e.getPart(), e.getOffset());
+					restored.put(moved, e);
+				}
+				previous.add(e);
 			}
-			
-			raf.close();
-			out.close();
-			
-			if(!ArchivePart.delete(source)) return false;
-			entries.remove(entry);
-			
-			for(ArchiveEntry en : entries) {
-				if(en.getPart() != entry.getPart()) continue;
-				if(en.getOffset() > entry.getOffset()) en.setOffset(en.getOffset() - entry.getLength());
+
+			parts.forEach(freeSpace::clear);
+			holes.forEach((part, h) -> h.forEach(hole -> freeSpace.free(part, hole.getOffset(), hole.getLength())));
+			this.maxPartSize = previousMaxPartSize;
+			publish(previous, Collections.emptyList(), restored, parts);
+		}
+		finishRewrite(Collections.emptySet());
+		return false;
+	}
+
+	/**
+	 * @return The file which records a swap of part files until its header was written, <code>&lt;header&gt;.rewrite</code>.
+	 */
+	public File getRewriteFile() {
+		return new File(getBaseFile().getParentFile(), getBaseName() + "." + getExtension() + ".rewrite");
+	}
+
+	private File getBackupFile(int part) {
+		return new File(getPartFile(part).getPath() + ".bak");
+	}
+
+	private void writeRewriteFile(Map<Integer, Boolean> parts) throws IOException {
+		FileOutputStream fileOut = new FileOutputStream(getRewriteFile());
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+			out.writeLong(journal.getId());
+			out.writeInt(parts.size());
+			for(Map.Entry<Integer, Boolean> e : parts.entrySet()) {
+				out.writeInt(e.getKey());
+				out.writeBoolean(e.getValue());
 			}
-			
-			sortEntries();
-			
-			updateHeaderFile();
-			
-			return target.renameTo(source);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+
+			out.flush();
+			durability.sync(fileOut.getChannel());
 		}
+		durability.syncDirectory();
 	}
-	
-	private void sortEntries() {
-		Collections.sort(entries, new Comparator<ArchiveEntry>() {
+
+	/**
+	 * Moves the backups back. Part files which did not exist before the swap are deleted.
+	 */
+	private void restoreParts(Map<Integer, Boolean> parts) {
+		parts.forEach((part, existed) -> {
+			File file = getPartFile(part), backup = getBackupFile(part);
+			try {
+				if(backup.exists()) ArchivePart.replace(backup, file);
+				else if(!existed && file.exists() && !file.delete()) System.err.println("Could not delete \"" + file.getAbsolutePath() + "\".");
+			} catch (IOException e) {
+				System.err.println("Could not restore \"" + file.getAbsolutePath() + "\" from \"" + backup.getAbsolutePath() + "\".");
+				e.printStackTrace();
+			}
+		});
+		durability.syncDirectory();
+	}
+
+	/**
+	 * Deletes the backups of the given parts and the record of the swap.
+	 */
+	private void finishRewrite(Collection<Integer> parts) {
+		for(int part : parts) {
+			File backup = getBackupFile(part);
+			if(backup.exists() && !backup.delete()) System.err.println("Could not delete \"" + backup.getAbsolutePath() + "\".");
+		}
+
+		File file = getRewriteFile();
+		if(file.exists() && !file.delete()) System.err.println("Could not delete \"" + file.getAbsolutePath() + "\".");
+	}
+
+	/**
+	 * Finishes or reverts a swap of part files which was interrupted, see {@link ArchiveRepacker}. Called by the {@link APParser} before the journal is replayed.
+	 * If the header which refers to the new part files was written, the backups of the old ones are deleted. Otherwise, the old part files are restored.
+	 * 
+	 * @throws IOException If the record of the swap could not be read.
+	 */
+	public void recoverRewrite() throws IOException {
+		File file = getRewriteFile();
+		if(!file.exists()) return;
+
+		long id;
+		Map<Integer, Boolean> parts = new TreeMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			id = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) 
+				parts.put(in.readInt(), in.readBoolean());
+		} catch (EOFException e) { // the record is written completely before any part file is touched
+			finishRewrite(Collections.emptySet());
+			return;
+		}
+
+		if(id == journal.getId()) {
+			restoreParts(parts);
+			ArchivePart.log("Restored " + parts.size() + " part files of an interrupted rewrite.");
+			finishRewrite(Collections.emptySet());
+		} else {
+			finishRewrite(parts.keySet());
+		}
+	}
+
+	/**
+	 * Publishes a snapshot after part files were rewritten. Readers either see the old entries and part files or the new ones.
+	 */
+	private void publish(List<ArchiveEntry> list, Collection<ArchiveEntry> removed, Map<ArchiveEntry, ArchiveEntry> relocated, Collection<Integer> rewrittenParts) {
+		synchronized (channelPool) {
+			for(ArchiveEntry e : removed) {
+				index.remove(e);
+				e.markStale();
+				journal.recordRemove(e);
+			}
+			relocated.forEach((before, after) -> {
+				index.replace(before, after);
+				before.markStale();
+				journal.recordRelocate(before, after);
+			});
+
+			Set<String> vacated = new HashSet<>();
+			if(!compactEntries) {
+				for(ArchiveEntry e : removed)
+					if(index.get(e.getFile()) == null) vacated.add(e.getFile());
+			}
+
+			if(!vacated.isEmpty()) { // another entry with the same path, e.g. a replacement, takes over
+				for(ArchiveEntry e : list)
+					if(vacated.contains(e.getFile())) index.add(e);
+			}
+
+			rewrittenParts.forEach(channelPool::invalidate);
+			publish(list);
+		}
+	}
+
+	/**
+	 * Sorts the entries by part and offset. Entries at the same position keep their insertion order.
+	 */
+	public void sortEntries() {
+		writeLock.lock();
+		try {
+			List<ArchiveEntry> list = new ArrayList<>(snapshot());
+			sort(list);
+			publish(list);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static void sort(List<ArchiveEntry> list) {
+		Collections.sort(list, new Comparator<ArchiveEntry>() {
 
 			@Override
 			public int compare(ArchiveEntry e1, ArchiveEntry e2) {
-				if(e1.getPart() != e2.getPart()) return e1.getPart() > e2.getPart() ? 1 : -1;
-				return e1.getOffset() > e2.getOffset() ? 1 : -1;
+				if(e1.getPart() != e2.getPart()) return Integer.compare(e1.getPart(), e2.getPart());
+				return Long.compare(e1.getOffset(), e2.getOffset());
 			}
 		});
 	}
@@ -0,0 +1,341 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.io.ChannelUtils;
+
+/**
+ * Rewrites fragmented part files and merges under-filled ones.<br>
+ * <br>
+ * A part is fragmented, if the share of its bytes which do not belong to any entry reaches the threshold.
+ * A part is under-filled, if its entries use less than the minimum fill level of the maximum part size.
+ * The entries of the selected parts are packed into as few of these parts as possible, in their current order.
+ * Every target part is written to a temporary file by its own task, with zero-copy channel transfers.
+ * Entries are encrypted relative to their own start, so they can be moved without being re-encrypted.
+ * A target replaces its part and the header is written, as soon as no other target has to be read from the part anymore,
+ * so only a few parts are stored twice at the same time instead of all of them.<br>
+ * <br>
+ * The same way, {@link #resize(long)} re-slices all parts to a new maximum part size.
+ */
+public class ArchiveRepacker {
+
+	private final ArchivePartFile apFile;
+	private double threshold = 0.25D;
+	private double minFillLevel = 0.5D;
+	private int threads = 1;
+
+	public ArchiveRepacker(ArchivePartFile apFile) {
+		if(apFile == null) throw new IllegalArgumentException("The given archive is null!");
+		this.apFile = apFile;
+	}
+
+	/**
+	 * @param threshold The share of dead bytes from which on a part is rewritten, from 0 to 1.
+	 * @return This repacker.
+	 */
+	public ArchiveRepacker setThreshold(double threshold) {
+		if(threshold < 0D || threshold > 1D) throw new IllegalArgumentException("The threshold has to be between 0 and 1.");
+		this.threshold = threshold;
+		return this;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param minFillLevel The fill level below which parts are merged, if there are at least two of them.
+	 * @return This repacker.
+	 */
+	public ArchiveRepacker setMinFillLevel(double minFillLevel) {
+		if(minFillLevel < 0D || minFillLevel > 1D) throw new IllegalArgumentException("The minimum fill level has to be between 0 and 1.");
+		this.minFillLevel = minFillLevel;
+		return this;
+	}
+
+	public double getMinFillLevel() {
+		return minFillLevel;
+	}
+
+	public ArchiveRepacker setThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException("The number of threads has to be at least 1.");
+		this.threads = threads;
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return true, if the archive was repacked successfully or did not need to be repacked.
+	 */
+	public boolean repack() {
+		apFile.getWriteLock().lock();
+		try {
+			return repackLocked();
+		} finally {
+			apFile.getWriteLock().unlock();
+		}
+	}
+
+	private boolean repackLocked() {
+		TreeSet<Integer> fragmented = new TreeSet<>(), underFilled = new TreeSet<>();
+		for(PartStatistics stats : apFile.getPartStatistics()) {
+			if(stats.getSize() <= 0L) continue;
+
+			if(stats.getDeadBytes() > 0L && stats.getFragmentation() >= threshold) fragmented.add(stats.getPart());
+			else if(stats.getFillLevel() < minFillLevel) underFilled.add(stats.getPart());
+		}
+
+		TreeSet<Integer> selected = new TreeSet<>(fragmented);
+		if(!fragmented.isEmpty() || underFilled.size() >= 2) selected.addAll(underFilled);
+
+		//part files behind the last used part, e.g. left empty by removals
+		List<Integer> orphans = findOrphans();
+
+		if(selected.isEmpty()) {
+			if(orphans.isEmpty()) {
+				ArchivePart.log("No part needs to be repacked.");
+				return true;
+			}
+
+			try {
+				return apFile.applyRewrite(Collections.emptyMap(), orphans, Collections.emptyMap());
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		ArchivePart.log("Repacking " + fragmented.size() + " fragmented and " + (selected.size() - fragmented.size()) + " under-filled parts...");
+
+		return rewrite(selected, orphans, apFile.getMaxPartSize());
+	}
+
+	/**
+	 * Re-slices all part files to a new maximum part size.
+	 * The entries keep their order and are moved into as few parts as the new size allows, without being re-encrypted.
+	 *
+	 * @param maxPartSize The new maximum part size, in bytes.
+	 * @return true, if the archive was resized successfully.
+	 */
+	public boolean resize(long maxPartSize) {
+		if(maxPartSize <= 0L) throw new IllegalArgumentException("The maximum part size has to be positive.");
+
+		apFile.getWriteLock().lock();
+		try {
+			return resizeLocked(maxPartSize);
+		} finally {
+			apFile.getWriteLock().unlock();
+		}
+	}
+
+	private boolean resizeLocked(long maxPartSize) {
+		for(ArchiveEntry e : apFile.getEntries()) {
+			if(e.getLength() > maxPartSize) {
+				System.err.println("The entry \"" + e.getFile() + "\" is bigger than the new maximum part size (" + e.getLength() + " > " + maxPartSize + " bytes).");
+				return false;
+			}
+		}
+
+		TreeSet<Integer> selected = new TreeSet<>();
+		for (int part = 1; part <= apFile.getHighestPartFileNumber(); part++)
+			if(apFile.getPartFile(part).exists()) selected.add(part);
+
+		ArchivePart.log("Resizing " + selected.size() + " parts to a maximum of " + maxPartSize + " bytes...");
+
+		return rewrite(selected, findOrphans(), maxPartSize);
+	}
+
+	private boolean rewrite(TreeSet<Integer> selected, List<Integer> orphans, long maxPartSize) {
+		//pack the entries of the selected parts into the selected parts, in their current order
+		List<Integer> targets = new ArrayList<>(selected);
+		Map<Integer, List<ArchiveEntry>> layout = new HashMap<>();
+		Map<ArchiveEntry, ArchiveEntry> relocated = new HashMap<>();
+		int target = 0;
+		long position = 0L;
+		for(ArchiveEntry e : apFile.getEntries()) {
+			if(!selected.contains(e.getPart())) continue;
+
+			if(position > 0L && position + e.getLength() > maxPartSize) {
+				target++;
+				position = 0L;
+				if(target >= targets.size()) {
+					int next = Math.max(apFile.getHighestPartFileNumber(), targets.get(targets.size() - 1)) + 1;
+					orphans.remove((Integer) next);
+					targets.add(next);
+				}
+			}
+
+			int part = targets.get(target);
+			layout.computeIfAbsent(part, p -> new ArrayList<>()).add(e);
+			relocated.put(e, e.getPart() == part && e.getOffset() == position ? e : e.relocate(part, position));
+			position += e.getLength();
+		}
+
+		//the parts whose current content every target is written from
+		Map<Integer, Set<Integer>> sources = new HashMap<>();
+		layout.forEach((part, entries) -> {
+			Set<Integer> parts = new HashSet<>();
+			for(ArchiveEntry e : entries) parts.add(e.getPart());
+			sources.put(part, parts);
+		});
+
+		TreeSet<Integer> pending = new TreeSet<>(layout.keySet());
+		List<Integer> emptied = new ArrayList<>();
+		for(int part : targets)
+			if(!layout.containsKey(part)) emptied.add(part);
+
+		List<Integer> deleted = new ArrayList<>(orphans);
+		final long intermediateSize = Math.max(apFile.getMaxPartSize(), maxPartSize);
+		final int rewrittenParts = pending.size();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, rewrittenParts)));
+		Map<Integer, File> rewritten = new HashMap<>();
+		try {
+			while(!pending.isEmpty()) {
+				List<Integer> batch = nextBatch(pending, sources);
+
+				List<Future<?>> futures = new ArrayList<>();
+				for(int part : batch) {
+					final List<ArchiveEntry> entries = layout.get(part);
+					final File file = new File(apFile.getPartFile(part).getPath() + ".tmp");
+					rewritten.put(part, file);
+					futures.add(executor.submit(() -> {
+						write(entries, file);
+						return null;
+					}));
+				}
+
+				for(Future<?> future : futures) future.get();
+
+				pending.removeAll(batch);
+				for(Iterator<Integer> it = emptied.iterator(); it.hasNext();) {
+					int part = it.next();
+					if(isRead(part, pending, sources)) continue;
+
+					deleted.add(part);
+					it.remove();
+				}
+
+				Map<ArchiveEntry, ArchiveEntry> moved = new HashMap<>();
+				for(int part : batch) {
+					for(ArchiveEntry e : layout.get(part)) {
+						ArchiveEntry after = relocated.get(e);
+						if(after != e) moved.put(e, after);
+					}
+				}
+
+				boolean written = apFile.applyRewrite(rewritten, deleted, moved, pending.isEmpty() ? maxPartSize : intermediateSize);
+				rewritten.clear();
+				deleted.clear();
+				if(!written) return false;
+			}
+
+			deleted.addAll(emptied); // if no target has any entries
+			if(!deleted.isEmpty() && !apFile.applyRewrite(Collections.emptyMap(), deleted, Collections.emptyMap(), maxPartSize)) return false;
+
+			ArchivePart.log("Repacked " + selected.size() + " parts into " + rewrittenParts + ".");
+			return true;
+		} catch (IOException | ExecutionException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			e.printStackTrace();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		rewritten.values().forEach(File::delete);
+		return false;
+	}
+
+	/**
+	 * Selects up to {@link #getThreads()} targets whose current part is not read by any other pending target, so they can be replaced right after they were written.
+	 * Only if the targets depend on each other in a cycle, all of them are written before they are replaced.
+	 */
+	private List<Integer> nextBatch(TreeSet<Integer> pending, Map<Integer, Set<Integer>> sources) {
+		List<Integer> batch = new ArrayList<>();
+		for(int part : pending) {
+			if(isRead(part, pending, sources)) continue;
+
+			batch.add(part);
+			if(batch.size() >= threads) break;
+		}
+
+		return batch.isEmpty() ? new ArrayList<>(pending) : batch;
+	}
+
+	private static boolean isRead(int part, Set<Integer> pending, Map<Integer, Set<Integer>> sources) {
+		for(int target : pending)
+			if(target != part && sources.get(target).contains(part)) return true;
+
+		return false;
+	}
+
+	private List<Integer> findOrphans() {
+		List<Integer> orphans = new ArrayList<>();
+
+		File[] files = apFile.getBaseFile().getAbsoluteFile().getParentFile().listFiles();
+		if(files == null) return orphans;
+
+		final Pattern p = Pattern.compile(Pattern.quote(apFile.getBaseName()) + "\\.([0-9]+)\\." + Pattern.quote(apFile.getExtension()));
+		final int highest = apFile.getHighestPartFileNumber();
+		for(File f : files) {
+			Matcher m = p.matcher(f.getName());
+			if(!f.isFile() || !m.matches()) continue;
+
+			try {
+				int part = Integer.parseInt(m.group(1));
+				if(part > highest) orphans.add(part);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+
+		Collections.sort(orphans);
+		return orphans;
+	}
+
+	private void write(List<ArchiveEntry> entries, File target) throws IOException {
+		Map<Integer, FileChannel> sources = new HashMap<>();
+		try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			for(ArchiveEntry e : entries) {
+				if(e.getLength() <= 0L) continue;
+
+				FileChannel in = sources.get(e.getPart());
+				if(in == null) {
+					in = FileChannel.open(apFile.getPartFile(e.getPart()).toPath(), StandardOpenOption.READ);
+					sources.put(e.getPart(), in);
+				}
+
+				ChannelUtils.transfer(in, e.getOffset(), e.getLength(), out);
+			}
+
+			apFile.getDurability().sync(out);
+		} finally {
+			for(FileChannel in : sources.values()) in.close();
+		}
+	}
+
+}
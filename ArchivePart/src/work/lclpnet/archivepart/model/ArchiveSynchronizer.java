@@ -0,0 +1,428 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Synchronizes an archive with a directory, in two phases.<br>
+ * <br>
+ * First, {@link #scan()} walks the directory with a {@link DirectoryScanner}, which compares the attributes of the files with their entries concurrently.
+ * A file is unchanged, if its size and modification time match its entry. Otherwise it is hashed, if its size matches.
+ * The files to hash are split into slices of {@value #FILES_PER_TASK}, which are hashed by the same pool.
+ * The result is a {@link ChangeSet} of added, changed, touched and, in strict mode, removed files.
+ * The archive is not modified while scanning.<br>
+ * <br>
+ * Then, {@link #apply(ChangeSet)} writes the changes in one {@link ArchiveBatch}, on the calling thread.<br>
+ * <br>
+ * {@link #scan(Collection)} only compares the given paths, e.g. the ones reported by an {@link ArchiveWatcher}.
+ */
+public class ArchiveSynchronizer {
+
+	/** The number of files above which the files to hash are split into multiple tasks. */
+	private static final int FILES_PER_TASK = 16;
+
+	private final ArchivePartFile apFile;
+	private final File root;
+	private final String rootPath;
+	private final DirectoryScanner scanner;
+	private int threads = 1;
+	private boolean strict = false;
+	private boolean paranoid = false;
+	private FileFilter filter = null;
+
+	/**
+	 * @param apFile The archive to synchronize.
+	 * @param root The directory which corresponds to the root of the archive.
+	 */
+	public ArchiveSynchronizer(ArchivePartFile apFile, File root) {
+		if(apFile == null) throw new IllegalArgumentException("The given archive is null!");
+		if(root == null) throw new IllegalArgumentException("The given root directory is null!");
+		this.apFile = apFile;
+		this.root = root.getAbsoluteFile();
+		this.rootPath = this.root.getPath();
+		this.scanner = new DirectoryScanner(this.root);
+	}
+
+	public ArchivePartFile getArchive() {
+		return apFile;
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return The scanner of the directory, e.g. to add include and exclude globs.
+	 */
+	public DirectoryScanner getScanner() {
+		return scanner;
+	}
+
+	/**
+	 * @param threads The number of threads which walk the directory and hash files concurrently.
+	 * @return This synchronizer.
+	 */
+	public ArchiveSynchronizer setThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException("The number of threads has to be at least 1.");
+		this.threads = threads;
+		scanner.setThreads(threads);
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param strict True, if entries whose file is not present in the directory should be removed.
+	 * @return This synchronizer.
+	 */
+	public ArchiveSynchronizer setStrict(boolean strict) {
+		this.strict = strict;
+		return this;
+	}
+
+	public boolean isStrict() {
+		return strict;
+	}
+
+	/**
+	 * @param paranoid True, if every file should be hashed, even if its size and modification time match its entry.
+	 * @return This synchronizer.
+	 */
+	public ArchiveSynchronizer setParanoid(boolean paranoid) {
+		this.paranoid = paranoid;
+		return this;
+	}
+
+	public boolean isParanoid() {
+		return paranoid;
+	}
+
+	/**
+	 * @param filter Only files accepted by the filter are synchronized, e.g. to skip the files of the archive itself. Null to accept all files.
+	 * @return This synchronizer.
+	 */
+	public ArchiveSynchronizer setFilter(FileFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	public FileFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Walks the directory and compares it with the archive.
+	 *
+	 * @return The changes, sorted by path.
+	 * @throws IOException If a file could not be hashed.
+	 */
+	public ChangeSet scan() throws IOException {
+		Scan scan = new Scan();
+		scanner.scan(f -> compare(scan, f));
+		hash(scan);
+
+		List<ArchiveEntry> removed = new ArrayList<>();
+		if(strict) {
+			for(ArchiveEntry e : apFile.getEntries())
+				if(!scan.walked.contains(e.getFile())) removed.add(e);
+		}
+
+		return result(scan, removed);
+	}
+
+	/**
+	 * Compares only some paths of the directory with the archive. Directories are walked completely.
+	 * In strict mode, the entries of paths which do not exist anymore, or of the files in them, are removed.
+	 *
+	 * @param files The files or directories, paths outside of the root directory are ignored.
+	 * @return The changes, sorted by path.
+	 * @throws IOException If a file could not be hashed.
+	 */
+	public ChangeSet scan(Collection<File> files) throws IOException {
+		Scan scan = new Scan();
+		Set<String> missing = new TreeSet<>();
+		for(File f : files) {
+			File file = f.getAbsoluteFile();
+			if(!file.getPath().startsWith(rootPath + File.separator)) continue;
+
+			if(file.isDirectory()) {
+				scanner.scan(file, scanned -> compare(scan, scanned));
+				continue;
+			}
+			if(filter != null && !filter.accept(file)) continue;
+
+			ScannedFile scanned = scanner.stat(file);
+			if(scanned != null) compare(scan, scanned);
+			else if(!file.exists()) missing.add(scanner.getPath(file));
+		}
+
+		hash(scan);
+
+		Set<ArchiveEntry> removed = new LinkedHashSet<>();
+		if(strict) {
+			for(String path : missing) {
+				ArchiveEntry e = apFile.getArchiveEntryByFile(path);
+				if(e != null) removed.add(e);
+
+				for(ArchiveEntry child : apFile.getArchiveEntriesByPrefix(path + "/"))
+					if(!scan.walked.contains(child.getFile())) removed.add(child);
+			}
+		}
+
+		return result(scan, new ArrayList<>(removed));
+	}
+
+	/**
+	 * Hashes the files whose size matches their entry, to know whether their content changed.
+	 */
+	private void hash(Scan scan) throws IOException {
+		if(scan.hashed.isEmpty()) return;
+
+		Change[] changes = scan.hashed.toArray(new Change[0]);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new HashTask(scan, changes, 0, changes.length));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static ChangeSet result(Scan scan, List<ArchiveEntry> removed) {
+		Map<ArchiveEntry, Long> touched = new HashMap<>();
+		for(Change c : scan.touched) touched.put(c.entry, c.lastModified);
+
+		return new ChangeSet(sorted(scan.added), sorted(scan.changed), removed, touched);
+	}
+
+	/**
+	 * Writes the changes of a scan to the archive, in one batch.
+	 *
+	 * @param changes The changes, see {@link #scan()}.
+	 * @return true, if every change was written and the batch was committed.
+	 */
+	public boolean apply(ChangeSet changes) {
+		if(changes.isEmpty()) return true;
+
+		boolean success = true;
+		try (ArchiveBatch batch = apFile.beginBatch()) {
+			for(Change c : changes.getChanged())
+				success &= batch.add(c.getFile(), c.getPath(), true);
+
+			for(Change c : changes.getAdded())
+				success &= batch.add(c.getFile(), c.getPath(), true);
+
+			changes.getTouched().forEach(batch::updateLastModified);
+			changes.getRemoved().forEach(batch::remove);
+
+			return batch.commit() && success;
+		}
+	}
+
+	/**
+	 * Scans the directory and applies the changes.
+	 *
+	 * @return The changes which were applied, or null if they could not be applied.
+	 * @throws IOException If a file could not be hashed.
+	 */
+	public ChangeSet sync() throws IOException {
+		ChangeSet changes = scan();
+		return apply(changes) ? changes : null;
+	}
+
+	private void compare(Scan scan, ScannedFile f) {
+		String path = f.getPath();
+		if(filter != null && !filter.accept(f.getFile())) return;
+		if(!scan.walked.add(path)) return; // reported twice, e.g. by itself and by its new directory
+
+		final long length = f.getSize(), lastModified = f.getLastModified();
+
+		ArchiveEntry entry = apFile.getArchiveEntryByFile(path);
+		if(entry == null) {
+			scan.added.add(new Change(f.getFile(), path, null, lastModified));
+			return;
+		}
+
+		if(!paranoid && entry.getLastModified() != ArchiveEntry.MODIFIED_UNDEFINED && entry.getLastModified() == lastModified && entry.getLength() == length) return;
+
+		//only files of the same size can be unchanged, then the modification time is refreshed so they are not hashed again
+		if(entry.getLength() == length) scan.hashed.add(new Change(f.getFile(), path, entry, lastModified));
+		else scan.changed.add(new Change(f.getFile(), path, entry, lastModified));
+	}
+
+	private void hash(Scan scan, Change c) {
+		long checksum;
+		try {
+			checksum = apFile.getChecksumAlgorithm().checksum(c.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		if(c.entry.getChecksum() != checksum) scan.changed.add(c);
+		else if(c.entry.getLastModified() != c.lastModified) scan.touched.add(c);
+	}
+
+	private static List<Change> sorted(Queue<Change> changes) {
+		List<Change> list = new ArrayList<>(changes);
+		list.sort(Comparator.comparing(Change::getPath));
+		return list;
+	}
+
+	/**
+	 * The results of a scan, which are collected concurrently.
+	 */
+	private static class Scan {
+
+		private final Set<String> walked = ConcurrentHashMap.newKeySet();
+		private final Queue<Change> added = new ConcurrentLinkedQueue<>();
+		private final Queue<Change> changed = new ConcurrentLinkedQueue<>();
+		private final Queue<Change> touched = new ConcurrentLinkedQueue<>();
+		/** The files which have to be hashed to know whether they changed. */
+		private final Queue<Change> hashed = new ConcurrentLinkedQueue<>();
+
+	}
+
+	private class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Scan scan;
+		private final Change[] changes;
+		private final int from, to;
+
+		private HashTask(Scan scan, Change[] changes, int from, int to) {
+			this.scan = scan;
+			this.changes = changes;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > FILES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new HashTask(scan, changes, from, mid), new HashTask(scan, changes, mid, to));
+				return;
+			}
+
+			for (int i = from; i < to; i++)
+				hash(scan, changes[i]);
+		}
+
+	}
+
+	/**
+	 * A file which differs from the archive.
+	 */
+	public static class Change {
+
+		private final File file;
+		private final String path;
+		private final ArchiveEntry entry;
+		private final long lastModified;
+
+		private Change(File file, String path, ArchiveEntry entry, long lastModified) {
+			this.file = file;
+			this.path = path;
+			this.entry = entry;
+			this.lastModified = lastModified;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The path inside the archive.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return The entry of the file, null if the file was added.
+		 */
+		public ArchiveEntry getEntry() {
+			return entry;
+		}
+
+		/**
+		 * @return The modification time of the file when it was scanned.
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+	}
+
+	/**
+	 * The differences between a directory and an archive, see {@link ArchiveSynchronizer#scan()}.
+	 */
+	public static class ChangeSet {
+
+		private final List<Change> added, changed;
+		private final List<ArchiveEntry> removed;
+		private final Map<ArchiveEntry, Long> touched;
+
+		private ChangeSet(List<Change> added, List<Change> changed, List<ArchiveEntry> removed, Map<ArchiveEntry, Long> touched) {
+			this.added = Collections.unmodifiableList(added);
+			this.changed = Collections.unmodifiableList(changed);
+			this.removed = Collections.unmodifiableList(removed);
+			this.touched = Collections.unmodifiableMap(touched);
+		}
+
+		/**
+		 * @return The files which have no entry yet.
+		 */
+		public List<Change> getAdded() {
+			return added;
+		}
+
+		/**
+		 * @return The files whose content differs from their entry.
+		 */
+		public List<Change> getChanged() {
+			return changed;
+		}
+
+		/**
+		 * @return The entries whose file is not present anymore, only determined in strict mode.
+		 */
+		public List<ArchiveEntry> getRemoved() {
+			return removed;
+		}
+
+		/**
+		 * @return The entries whose file has a new modification time, but the same content, mapped to the new modification time.
+		 */
+		public Map<ArchiveEntry, Long> getTouched() {
+			return touched;
+		}
+
+		public boolean isEmpty() {
+			return added.isEmpty() && changed.isEmpty() && removed.isEmpty() && touched.isEmpty();
+		}
+
+	}
+
+}
@@ -0,0 +1,212 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import work.lclpnet.archivepart.ArchivePart;
+
+/**
+ * Keeps an archive in sync with a directory, while the archive stays open.<br>
+ * <br>
+ * Every directory of the tree is registered with a {@link WatchService}. The reported paths are collected,
+ * until no event arrived for the debounce time, so a file which is written in many steps is only compared once.
+ * If events keep arriving, the paths are synchronized after {@value #MAX_DEBOUNCES} debounce times at the latest.
+ * Then only the collected paths are compared and applied by the {@link ArchiveSynchronizer}, so the work depends on the number of changes and not on the size of the tree.
+ * New directories are registered and walked completely. If the watch service lost events, the whole tree is scanned again.
+ * If changes could not be applied, the header is written again and the whole tree is scanned again, after the next events or {@value #RETRY_DELAY} milliseconds.<br>
+ * <br>
+ * {@link #run()} blocks until the watcher is closed by another thread.
+ */
+public class ArchiveWatcher implements AutoCloseable {
+
+	/** The number of debounce times after which the collected paths are synchronized, even if events keep arriving. */
+	private static final int MAX_DEBOUNCES = 10;
+	/** The time in milliseconds after which changes which could not be applied are retried, if no event arrives before. */
+	private static final long RETRY_DELAY = 5000L;
+
+	private final ArchiveSynchronizer synchronizer;
+	private final Path root;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private long debounce = 500L;
+	private Consumer<ArchiveSynchronizer.ChangeSet> listener = null;
+
+	/**
+	 * @param synchronizer The synchronizer of the archive and the directory.
+	 * @throws IOException If the watch service could not be created.
+	 */
+	public ArchiveWatcher(ArchiveSynchronizer synchronizer) throws IOException {
+		if(synchronizer == null) throw new IllegalArgumentException("The given synchronizer is null!");
+		this.synchronizer = synchronizer;
+		this.root = synchronizer.getRoot().toPath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * @param debounce The time in milliseconds without events, after which the collected paths are synchronized.
+	 * @return This watcher.
+	 */
+	public ArchiveWatcher setDebounce(long debounce) {
+		if(debounce < 0L) throw new IllegalArgumentException("The debounce time must not be negative.");
+		this.debounce = debounce;
+		return this;
+	}
+
+	public long getDebounce() {
+		return debounce;
+	}
+
+	/**
+	 * @param listener Called with the changes, after they were applied.
+	 * @return This watcher.
+	 */
+	public ArchiveWatcher setListener(Consumer<ArchiveSynchronizer.ChangeSet> listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Registers the tree and synchronizes the changes, until the watcher is closed.
+	 *
+	 * @return true, if all changes were applied successfully.
+	 * @throws IOException If the tree could not be registered or a file could not be hashed.
+	 */
+	public boolean run() throws IOException {
+		boolean success = true;
+		try {
+			register(root);
+
+			//changes which happened before the tree was registered
+			success &= apply(synchronizer.scan());
+
+			//true, if changes could not be applied. Then the whole tree is scanned again, after the next events or the retry delay
+			boolean retry = !success;
+			while(true) {
+				Set<File> changed = new LinkedHashSet<>();
+				WatchKey first = retry ? watchService.poll(RETRY_DELAY, TimeUnit.MILLISECONDS) : watchService.take();
+				boolean overflow = false;
+
+				if(first != null) {
+					overflow = poll(first, changed);
+
+					//wait until no event arrived for the debounce time, but not forever if the tree never comes to rest
+					final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounce * MAX_DEBOUNCES);
+					WatchKey key;
+					while(System.nanoTime() < deadline && (key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null)
+						overflow |= poll(key, changed);
+				}
+
+				boolean applied = true;
+				if(retry) {
+					ArchivePart.log("Retrying the changes which could not be applied...");
+					//the archive may already contain changes whose header could not be written
+					applied = synchronizer.getArchive().checkpoint() && apply(synchronizer.scan());
+				} else if(overflow) {
+					ArchivePart.log("Events were lost, scanning the whole directory...");
+					applied = apply(synchronizer.scan());
+				} else if(!changed.isEmpty()) applied = apply(synchronizer.scan(changed));
+
+				success &= applied;
+				retry = !applied;
+			}
+		} catch (ClosedWatchServiceException e) {
+			return success;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return success;
+		}
+	}
+
+	private boolean apply(ArchiveSynchronizer.ChangeSet changes) {
+		if(changes.isEmpty()) return true;
+
+		boolean applied = synchronizer.apply(changes);
+		if(!applied) System.err.println("Could not save the changes to the archive.");
+		if(listener != null) listener.accept(changes);
+		return applied;
+	}
+
+	/**
+	 * Collects the paths of the events of a key.
+	 *
+	 * @return true, if events were lost.
+	 */
+	private boolean poll(WatchKey key, Set<File> changed) throws IOException {
+		boolean overflow = false;
+		Path directory = directories.get(key);
+
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflow = true;
+				continue;
+			}
+			if(directory == null) continue;
+
+			Path path = directory.resolve((Path) event.context());
+			boolean isDirectory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+
+			//a modified directory only has new attributes, its children report their own events
+			if(isDirectory && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) continue;
+			if(isDirectory && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) register(path);
+
+			changed.add(path.toFile());
+		}
+
+		if(!key.reset()) directories.remove(key);
+		return overflow;
+	}
+
+	private void register(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key;
+				try {
+					key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (NoSuchFileException e) {
+					return FileVisitResult.SKIP_SUBTREE; // deleted in the meantime, its event follows
+				}
+
+				directories.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE; // e.g. deleted while it is registered
+			}
+		});
+	}
+
+	/**
+	 * Stops the watcher. {@link #run()} returns after the changes it is applying right now.
+	 */
+	@Override
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,321 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable snapshot of the entries of an archive, which does not keep an object per entry.
+ * The entries are stored in the format of an {@link EntryTable}: fixed-width records and front-coded paths, sorted by path,
+ * so the table answers the lookups of {@link EntryLookup} itself and no map of the entries is needed.
+ * The order of the list, by part and offset, is kept as an array of record indices.
+ * A snapshot of a parsed header uses the bytes of the table of the header directly.
+ * The snapshot of a modification copies the records it keeps from the previous snapshot and only sorts the new entries into them.<br>
+ * <br>
+ * The entries returned are lightweight views of the records, which decode their path only when it is needed.
+ * Views of the same entry are equal, but not identical. A view is stale, if a later snapshot of the archive does not contain its entry anymore.
+ */
+class CompactEntryList extends AbstractList<ArchiveEntry> implements RandomAccess, EntryLookup {
+
+	private final EntryTable table;
+	/** The index of the record of every element of the list. */
+	private final int[] order;
+	/** The snapshot which replaced this one, see {@link #isCurrent(View)}. */
+	private volatile CompactEntryList successor = null;
+	/** True, if this snapshot was replaced by one which is not compact. */
+	private volatile boolean detached = false;
+
+	private CompactEntryList(ByteBuffer buffer, boolean modificationTimes, int[] order) {
+		try {
+			this.table = new EntryTable(buffer, modificationTimes) {
+				@Override
+				ArchiveEntry entry(int index, String path) {
+					return new View(index, path);
+				}
+			};
+		} catch (APParseException e) {
+			throw new IllegalStateException("The entry table is corrupt.", e);
+		}
+		this.order = order;
+	}
+
+	/**
+	 * Creates a compact list of the entries of a parsed header, which shares the data of the table.
+	 * The entries which were created by the table so far become stale.
+	 *
+	 * @param table The entries of the header.
+	 * @return The entries, sorted by part and offset.
+	 */
+	static CompactEntryList of(EntryTable table) {
+		int[] order = sortIndices(table.size(), (a, b) -> {
+			int partA = table.getPart(a), partB = table.getPart(b);
+			return partA != partB ? Integer.compare(partA, partB) : Long.compare(table.getOffset(a), table.getOffset(b));
+		});
+
+		table.markCreatedStale();
+		return new CompactEntryList(table.getBuffer(), table.hasModificationTimes(), order);
+	}
+
+	/**
+	 * @param entries The entries, in the order of the list.
+	 * @return A compact list with the entries.
+	 */
+	static CompactEntryList of(List<ArchiveEntry> entries) {
+		if(entries instanceof CompactEntryList) return (CompactEntryList) entries;
+
+		final String[] paths = new String[entries.size()];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = entries.get(i).getFile();
+
+		final int[] byPath = sortIndices(paths.length, (a, b) -> EntryTable.comparePaths(paths[a], paths[b]));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			EntryTable.writeSorted(out, new AbstractList<ArchiveEntry>() {
+				@Override
+				public ArchiveEntry get(int index) {
+					return entries.get(byPath[index]);
+				}
+
+				@Override
+				public int size() {
+					return byPath.length;
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("The entries could not be encoded.", e);
+		}
+
+		int[] order = new int[byPath.length];
+		for (int i = 0; i < byPath.length; i++)
+			order[byPath[i]] = i;
+
+		return new CompactEntryList(ByteBuffer.wrap(bytes.toByteArray()), true, order);
+	}
+
+	/**
+	 * Creates a compact list from the entries of a modification of another compact list.
+	 * The records of the previous list which are kept are copied from its table and only the other entries are sorted,
+	 * so a small modification does not sort and decode all paths again.
+	 *
+	 * @param entries The entries, in the order of the list.
+	 * @param previous The list which was modified, or null.
+	 * @return A compact list with the entries.
+	 */
+	static CompactEntryList of(List<ArchiveEntry> entries, CompactEntryList previous) {
+		if(entries instanceof CompactEntryList) return (CompactEntryList) entries;
+		if(previous == null) return of(entries);
+
+		//the position in the list plus one of every record which is kept
+		int[] positions = new int[previous.table.size()];
+		int count = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			ArchiveEntry e = entries.get(i);
+			if(e instanceof View && ((View) e).owner() == previous && positions[((View) e).record] == 0) positions[((View) e).record] = i + 1;
+			else count++;
+		}
+
+		final int[] others = new int[count];
+		int n = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			ArchiveEntry e = entries.get(i);
+			if(!(e instanceof View && ((View) e).owner() == previous && positions[((View) e).record] == i + 1)) others[n++] = i;
+		}
+
+		final String[] otherPaths = new String[count];
+		for (int i = 0; i < count; i++)
+			otherPaths[i] = entries.get(others[i]).getFile();
+
+		int[] byPath = sortIndices(count, (a, b) -> EntryTable.comparePaths(otherPaths[a], otherPaths[b]));
+		List<ArchiveEntry> sorted = new ArrayList<>(count);
+		byte[][] paths = new byte[count][];
+		int[] otherPositions = new int[count];
+		for (int i = 0; i < count; i++) {
+			sorted.add(entries.get(others[byPath[i]]));
+			paths[i] = otherPaths[byPath[i]].getBytes(StandardCharsets.UTF_8);
+			otherPositions[i] = others[byPath[i]];
+		}
+
+		int[] merged = previous.table.merge(positions, paths, otherPositions);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			previous.table.writeMerged(out, merged, sorted, paths);
+		} catch (IOException e) {
+			throw new IllegalStateException("The entries could not be encoded.", e);
+		}
+
+		int[] order = new int[merged.length];
+		for (int i = 0; i < merged.length; i++)
+			order[merged[i] < 0 ? otherPositions[-merged[i] - 1] : positions[merged[i]] - 1] = i;
+
+		return new CompactEntryList(ByteBuffer.wrap(bytes.toByteArray()), true, order);
+	}
+
+	@Override
+	public int size() {
+		return order.length;
+	}
+
+	@Override
+	public ArchiveEntry get(int index) {
+		if(index < 0 || index >= order.length) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + order.length);
+		return new View(order[index], null);
+	}
+
+	/**
+	 * @return The highest part number of all entries, which is determined without creating any entry.
+	 */
+	int getHighestPart() {
+		return table.getHighestPart();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if(!(o instanceof ArchiveEntry)) return false;
+		if(o instanceof View && ((View) o).owner() == this) return true;
+
+		return table.indexOf((ArchiveEntry) o) >= 0;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if(!(o instanceof ArchiveEntry)) return -1;
+
+		int record = o instanceof View && ((View) o).owner() == this ? ((View) o).record : table.indexOf((ArchiveEntry) o);
+		if(record < 0) return -1;
+
+		for (int i = 0; i < order.length; i++)
+			if(order[i] == record) return i;
+
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o); // every record is contained once
+	}
+
+	@Override
+	public ArchiveEntry get(String path) {
+		return table.get(path);
+	}
+
+	@Override
+	public List<ArchiveEntry> getByPrefix(String prefix) {
+		return table.getByPrefix(prefix);
+	}
+
+	@Override
+	public boolean hasPrefix(String prefix) {
+		return table.hasPrefix(prefix);
+	}
+
+	@Override
+	public List<String> getChildren(String directory) {
+		return table.getChildren(directory);
+	}
+
+	@Override
+	public List<ArchiveEntry> getByGlob(String glob) {
+		return table.getByGlob(glob);
+	}
+
+	@Override
+	public List<ArchiveEntry> getByPattern(Pattern pattern) {
+		return table.getByPattern(pattern);
+	}
+
+	/**
+	 * Links this snapshot to the one which replaces it.
+	 *
+	 * @param next The new snapshot, or null if it is not compact.
+	 */
+	void supersede(CompactEntryList next) {
+		if(next == this) return;
+
+		if(next == null) detached = true;
+		else successor = next;
+	}
+
+	private boolean isCurrent(View view) {
+		CompactEntryList current = this;
+		while(true) {
+			if(current.detached) return false;
+
+			CompactEntryList next = current.successor;
+			if(next == null) break;
+			current = next;
+		}
+
+		return current == this || current.contains(view);
+	}
+
+	private interface IndexComparator {
+		int compare(int a, int b);
+	}
+
+	/**
+	 * Sorts the indices from 0 to size with a stable merge sort, without boxing them.
+	 */
+	private static int[] sortIndices(int size, IndexComparator comparator) {
+		int[] indices = new int[size], buffer = new int[size];
+		for (int i = 0; i < size; i++) indices[i] = i;
+
+		for (long width = 1L; width < size; width *= 2L) {
+			for (long start = 0L; start < size; start += 2L * width) {
+				int low = (int) start, mid = (int) Math.min(start + width, size), high = (int) Math.min(start + 2L * width, size);
+				int i = low, j = mid, k = low;
+				while(i < mid && j < high) buffer[k++] = comparator.compare(indices[i], indices[j]) <= 0 ? indices[i++] : indices[j++];
+				while(i < mid) buffer[k++] = indices[i++];
+				while(j < high) buffer[k++] = indices[j++];
+			}
+
+			int[] swap = indices;
+			indices = buffer;
+			buffer = swap;
+		}
+
+		return indices;
+	}
+
+	/**
+	 * An entry of the list. Its values are copied from the record, the path is decoded when it is needed.
+	 */
+	private class View extends ArchiveEntry {
+
+		private final int record;
+		private volatile String path;
+
+		private View(int record, String path) {
+			super(path, table.getPart(record), table.getOffset(record), table.getLength(record), table.getChecksum(record), table.getNonce(record), table.getLastModified(record));
+			this.record = record;
+			this.path = path;
+		}
+
+		private CompactEntryList owner() {
+			return CompactEntryList.this;
+		}
+
+		@Override
+		public String getFile() {
+			String p = path;
+			if(p == null) path = p = table.getPath(record);
+			return p;
+		}
+
+		@Override
+		public boolean isStale() {
+			return super.isStale() || !isCurrent(this);
+		}
+
+	}
+
+}
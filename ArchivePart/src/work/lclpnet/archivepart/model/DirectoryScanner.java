@@ -0,0 +1,431 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory tree with a fork-join pool and reads the attributes of every file exactly once.<br>
+ * <br>
+ * Every directory is listed by its own task with a {@link DirectoryStream}, which does not read any attributes.
+ * The attributes of the children are then read in slices of {@value #FILES_PER_TASK}, so even a single huge directory is split across the pool.
+ * The include and exclude globs are matched against the paths inside the archive while walking, in the syntax of {@link ArchivePartFile#getArchiveEntriesByGlob(String)}.
+ * A directory is skipped as a whole, if an exclude glob matches its path with a trailing slash, e.g. <code>/build/**</code>.<br>
+ * <br>
+ * {@link #walk()} returns the files in the order of the walk, which is deterministic, while the pool lists a few directories ahead.
+ * {@link #scan(Consumer)} passes the files to the pool threads as they are found, which is faster if their order does not matter.<br>
+ * <br>
+ * Like {@link File#listFiles()}, symbolic links are followed. Directories which cannot be listed and files which vanish while walking are skipped.
+ */
+public class DirectoryScanner {
+
+	/** The number of children of a directory whose attributes are read by one task. */
+	private static final int FILES_PER_TASK = 64;
+	/** The number of directories per thread which a {@link Walk} lists ahead of its iterator. */
+	private static final int READ_AHEAD_PER_THREAD = 4;
+
+	private final Path root;
+	private String pathPrefix = "";
+	private int threads = 1;
+	private final List<Pattern> includes = new ArrayList<>();
+	private final List<Pattern> excludes = new ArrayList<>();
+
+	/**
+	 * @param root The directory which corresponds to the root of the archive.
+	 */
+	public DirectoryScanner(File root) {
+		if(root == null) throw new IllegalArgumentException("The given root directory is null!");
+		this.root = root.getAbsoluteFile().toPath();
+	}
+
+	public File getRoot() {
+		return root.toFile();
+	}
+
+	/**
+	 * @param pathPrefix The path inside the archive which corresponds to the root directory, e.g. <code>/folder</code>. Empty for the root of the archive.
+	 * @return This scanner.
+	 */
+	public DirectoryScanner setPathPrefix(String pathPrefix) {
+		if(pathPrefix == null) throw new IllegalArgumentException("The path prefix must not be null.");
+		this.pathPrefix = pathPrefix.endsWith("/") ? pathPrefix.substring(0, pathPrefix.length() - 1) : pathPrefix;
+		return this;
+	}
+
+	public String getPathPrefix() {
+		return pathPrefix;
+	}
+
+	/**
+	 * @param threads The number of threads which list directories and read attributes concurrently.
+	 * @return This scanner.
+	 */
+	public DirectoryScanner setThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException("The number of threads has to be at least 1.");
+		this.threads = threads;
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Only includes files whose path matches one of the include globs. If there are none, all files are included.
+	 *
+	 * @param glob The glob, e.g. <code>/images/**.png</code>.
+	 * @return This scanner.
+	 */
+	public DirectoryScanner addInclude(String glob) {
+		includes.add(Pattern.compile(EntryIndex.globToRegex(glob)));
+		return this;
+	}
+
+	/**
+	 * Excludes files and directories whose path matches the glob.
+	 *
+	 * @param glob The glob, e.g. <code>**.tmp</code>.
+	 * @return This scanner.
+	 */
+	public DirectoryScanner addExclude(String glob) {
+		excludes.add(Pattern.compile(EntryIndex.globToRegex(glob)));
+		return this;
+	}
+
+	/**
+	 * @param path The path of a file inside the archive.
+	 * @return true, if the file is matched by the include globs and not by the exclude globs.
+	 */
+	public boolean isIncluded(String path) {
+		if(matches(excludes, path)) return false;
+		return includes.isEmpty() || matches(includes, path);
+	}
+
+	private boolean isExcludedDirectory(String path) {
+		return matches(excludes, path + "/");
+	}
+
+	/**
+	 * @return true, if the directory or one of its parents inside the root directory is excluded.
+	 */
+	private boolean isExcludedDirectory(Path directory) {
+		for(Path dir = directory; dir != null && dir.startsWith(root) && !dir.equals(root); dir = dir.getParent())
+			if(isExcludedDirectory(getPath(dir))) return true;
+
+		return false;
+	}
+
+	private static boolean matches(List<Pattern> patterns, String path) {
+		for(Pattern p : patterns)
+			if(p.matcher(path).matches()) return true;
+
+		return false;
+	}
+
+	/**
+	 * @param file A file inside the root directory.
+	 * @return The path of the file inside the archive.
+	 */
+	public String getPath(File file) {
+		return getPath(file.getAbsoluteFile().toPath());
+	}
+
+	private String getPath(Path file) {
+		StringBuilder path = new StringBuilder(pathPrefix);
+		for(Path name : root.relativize(file))
+			if(!name.toString().isEmpty()) path.append('/').append(name.toString());
+
+		return path.toString();
+	}
+
+	/**
+	 * Reads the attributes of a single file.
+	 *
+	 * @param file A file inside the root directory.
+	 * @return The file, or null if it does not exist, is a directory, is not included or is inside an excluded directory.
+	 */
+	public ScannedFile stat(File file) {
+		Path p = file.getAbsoluteFile().toPath();
+		String path = getPath(p);
+		if(!isIncluded(path) || isExcludedDirectory(p.getParent())) return null;
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+			return attributes.isDirectory() ? null : new ScannedFile(p, path, attributes);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Walks the root directory. The files are passed to the consumer by the threads of the pool, concurrently and in no particular order.
+	 *
+	 * @param consumer Called for every included file, has to be thread-safe.
+	 */
+	public void scan(Consumer<ScannedFile> consumer) {
+		scan(root.toFile(), consumer);
+	}
+
+	/**
+	 * Walks a directory inside the root directory, see {@link #scan(Consumer)}. Nothing is walked, if the directory or one of its parents is excluded.
+	 *
+	 * @param directory The directory to walk.
+	 * @param consumer Called for every included file, has to be thread-safe.
+	 * @throws UncheckedIOException If the consumer threw it.
+	 */
+	public void scan(File directory, Consumer<ScannedFile> consumer) {
+		if(consumer == null) throw new IllegalArgumentException("The given consumer is null!");
+
+		Path start = directory.getAbsoluteFile().toPath();
+		if(isExcludedDirectory(start)) return;
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new DirectoryTask(start, getPath(start), consumer));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Starts walking the root directory in the background.
+	 * The files are returned in the order of the walk: the children of a directory in the order of the directory stream, sub directories where they occur.
+	 * The walk has to be closed, to stop the pool if it is not iterated to the end.
+	 *
+	 * @return The walk, which can be iterated once.
+	 */
+	public Walk walk() {
+		return new Walk();
+	}
+
+	/**
+	 * The files of a running {@link DirectoryScanner#walk()}.
+	 * At most {@value #READ_AHEAD_PER_THREAD} directories per thread are listed ahead of the iterator, so the memory needed does not depend on the size of the tree.
+	 */
+	public class Walk implements Iterable<ScannedFile>, AutoCloseable {
+
+		private final ForkJoinPool pool = new ForkJoinPool(threads);
+		/** The directories which are being iterated, the innermost first. */
+		private final Deque<Frame> stack = new ArrayDeque<>();
+		private final int maxReadAhead = threads * READ_AHEAD_PER_THREAD;
+		/** The number of directories which were started, but are not iterated yet. */
+		private int readAhead = 0;
+		private ScannedFile next = null;
+		private boolean iterated = false;
+
+		private Walk() {
+			DirectoryTask task = new DirectoryTask(root, pathPrefix, null);
+			task.started = true;
+			pool.execute(task);
+			stack.push(new Frame(task.items()));
+		}
+
+		@Override
+		public Iterator<ScannedFile> iterator() {
+			if(iterated) throw new IllegalStateException("The walk can only be iterated once.");
+			iterated = true;
+
+			return new Iterator<ScannedFile>() {
+				@Override
+				public boolean hasNext() {
+					while(next == null && !stack.isEmpty()) {
+						readAhead();
+
+						Frame frame = stack.peek();
+						if(frame.next >= frame.items.size()) {
+							stack.pop();
+							continue;
+						}
+
+						Object item = frame.items.set(frame.next++, null); // the consumed part of the tree can be collected
+						if(item instanceof ScannedFile) {
+							next = (ScannedFile) item;
+							continue;
+						}
+
+						DirectoryTask task = (DirectoryTask) item;
+						if(task.started) readAhead--;
+						else start(task);
+						stack.push(new Frame(task.items()));
+					}
+					return next != null;
+				}
+
+				@Override
+				public ScannedFile next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					ScannedFile file = next;
+					next = null;
+					return file;
+				}
+			};
+		}
+
+		/**
+		 * Starts the next directories in the order of the walk, up to the read ahead limit.
+		 */
+		private void readAhead() {
+			for(Frame frame : stack) {
+				while(readAhead < maxReadAhead && frame.prefetched < frame.items.size()) {
+					Object item = frame.items.get(frame.prefetched++);
+					if(item instanceof DirectoryTask && !((DirectoryTask) item).started) {
+						start((DirectoryTask) item);
+						readAhead++;
+					}
+				}
+				if(readAhead >= maxReadAhead) return;
+			}
+		}
+
+		private void start(DirectoryTask task) {
+			task.started = true;
+			pool.execute(task);
+		}
+
+		@Override
+		public void close() {
+			pool.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * The children of a directory which is being iterated.
+	 */
+	private static class Frame {
+
+		private final List<Object> items;
+		/** The index of the next child to return and of the next child to start, if it is a directory. */
+		private int next = 0, prefetched = 0;
+
+		private Frame(List<Object> items) {
+			this.items = items;
+		}
+
+	}
+
+	/**
+	 * Lists a directory. With a consumer, the files are passed to it and the sub directories are walked before the task completes.
+	 * Without a consumer, the task keeps its children in order. The tasks of the sub directories are started by the {@link Walk}.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+		private final String path;
+		private final Consumer<ScannedFile> consumer;
+		/** The files and the tasks of the sub directories, if there is no consumer. */
+		private List<Object> items = null;
+		/** True, if the task was passed to the pool of a {@link Walk}. Only accessed by the iterating thread. */
+		private boolean started = false;
+
+		private DirectoryTask(Path directory, String path, Consumer<ScannedFile> consumer) {
+			this.directory = directory;
+			this.path = path;
+			this.consumer = consumer;
+		}
+
+		@Override
+		protected void compute() {
+			List<Path> children = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for(Path child : stream) children.add(child);
+			} catch (IOException e) {
+				items = new ArrayList<>();
+				return; // like File.listFiles(), unreadable directories are skipped
+			}
+
+			Object[] results = new Object[children.size()];
+			new AttributeTask(children, results, 0, results.length).invoke();
+
+			List<Object> ordered = new ArrayList<>(results.length);
+			List<DirectoryTask> directories = new ArrayList<>();
+			for(Object result : results) {
+				if(result == null) continue;
+				if(result instanceof DirectoryTask) directories.add((DirectoryTask) result);
+				if(consumer == null) ordered.add(result);
+			}
+
+			if(consumer != null) {
+				invokeAll(directories);
+				return;
+			}
+
+			items = ordered;
+		}
+
+		/**
+		 * Waits for the listing of the directory.
+		 */
+		private List<Object> items() {
+			join();
+			return items;
+		}
+
+		/**
+		 * Reads the attributes of a slice of the children and creates their files or tasks.
+		 */
+		private class AttributeTask extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final List<Path> children;
+			private final Object[] results;
+			private final int from, to;
+
+			private AttributeTask(List<Path> children, Object[] results, int from, int to) {
+				this.children = children;
+				this.results = results;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if(to - from > FILES_PER_TASK) {
+					int mid = (from + to) >>> 1;
+					invokeAll(new AttributeTask(children, results, from, mid), new AttributeTask(children, results, mid, to));
+					return;
+				}
+
+				for (int i = from; i < to; i++) {
+					Path child = children.get(i);
+					String childPath = path + "/" + child.getFileName().toString();
+
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(child, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue; // vanished, or a broken link
+					}
+
+					if(attributes.isDirectory()) {
+						if(!isExcludedDirectory(childPath)) results[i] = new DirectoryTask(child, childPath, consumer);
+					} else if(isIncluded(childPath)) {
+						ScannedFile file = new ScannedFile(child, childPath, attributes);
+						if(consumer != null) consumer.accept(file);
+						else results[i] = file;
+					}
+				}
+			}
+
+		}
+
+	}
+
+}
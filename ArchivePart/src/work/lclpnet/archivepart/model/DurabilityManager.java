@@ -0,0 +1,258 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import work.lclpnet.archivepart.io.ChannelUtils;
+import work.lclpnet.archivepart.io.DurabilityMode;
+
+/**
+ * Decides when the modifications of an archive are forced to the storage device, see {@link DurabilityMode}.<br>
+ * <br>
+ * The writers mark the part files they modify as dirty. When an operation is committed, the dirty part files are forced first,
+ * then the header is written to a temporary file, forced and renamed over the old header, so the header never refers to data which is not stored yet.
+ * In the group commit mode, the header of an operation is not written right away. Instead, the operations are collected,
+ * until their number reaches the maximum or the interval has passed, and are then forced together with one header update.
+ * Before space of removed entries is reused or part files are replaced, the collected operations are committed,
+ * so that the stored header never refers to overwritten data.
+ */
+public class DurabilityManager implements AutoCloseable {
+
+	private final ArchivePartFile apFile;
+	private DurabilityMode mode = DurabilityMode.NONE;
+	private int maxOperations = 64;
+	private long interval = 1000L;
+	private final Set<Integer> dirtyParts = new TreeSet<>();
+	/** The number of committed operations whose header was not written yet. */
+	private int pending = 0;
+	/** True, if the next operation has to be written right away. */
+	private boolean flushRequired = false;
+	private ScheduledExecutorService timer = null;
+	private ScheduledFuture<?> scheduled = null;
+
+	DurabilityManager(ArchivePartFile apFile) {
+		this.apFile = apFile;
+	}
+
+	public DurabilityMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The number of operations after which a group commit is written.
+	 */
+	public int getMaxOperations() {
+		return maxOperations;
+	}
+
+	/**
+	 * @return The time in milliseconds after which the collected operations are written.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return The number of operations which were committed, but not written yet.
+	 */
+	public synchronized int getPendingOperations() {
+		return pending;
+	}
+
+	/**
+	 * @return true, if files are forced to the storage device.
+	 */
+	public boolean isSyncing() {
+		return mode != DurabilityMode.NONE;
+	}
+
+	boolean configure(DurabilityMode mode, int maxOperations, long interval) {
+		if(mode == null) throw new IllegalArgumentException("The durability mode must not be null.");
+		if(maxOperations < 1) throw new IllegalArgumentException("The maximum number of operations has to be at least 1.");
+		if(interval < 1L) throw new IllegalArgumentException("The interval has to be positive.");
+
+		boolean flushed = flushLocked();
+
+		this.mode = mode;
+		this.maxOperations = maxOperations;
+		this.interval = interval;
+		return flushed;
+	}
+
+	/**
+	 * Marks a part file as modified, so that it is forced before the next header is written.
+	 *
+	 * @param part The number of the part.
+	 */
+	public synchronized void markDirty(int part) {
+		if(isSyncing()) dirtyParts.add(part);
+	}
+
+	/**
+	 * Forces the dirty part files to the storage device.
+	 *
+	 * @return true, if all part files were forced.
+	 */
+	public synchronized boolean syncDirtyParts() {
+		if(dirtyParts.isEmpty()) return true;
+
+		try {
+			for(int part : dirtyParts) {
+				File file = apFile.getPartFile(part);
+				if(file.exists()) ChannelUtils.force(file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		ChannelUtils.forceDirectory(apFile.getBaseFile().getAbsoluteFile().getParentFile());
+		dirtyParts.clear();
+		return true;
+	}
+
+	/**
+	 * Forces an open file, if files are forced in this mode.
+	 *
+	 * @param channel The channel of the file.
+	 * @throws IOException If the file could not be forced.
+	 */
+	public void sync(FileChannel channel) throws IOException {
+		if(isSyncing()) channel.force(true);
+	}
+
+	/**
+	 * Forces a file, e.g. before it replaces another file, if files are forced in this mode.
+	 *
+	 * @param file The file.
+	 * @throws IOException If the file could not be forced.
+	 */
+	public void sync(File file) throws IOException {
+		if(isSyncing()) ChannelUtils.force(file);
+	}
+
+	/**
+	 * Forces the directory of the archive, after files were created, renamed or deleted, if files are forced in this mode.
+	 */
+	public void syncDirectory() {
+		if(isSyncing()) ChannelUtils.forceDirectory(apFile.getBaseFile().getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Makes the next commit write the header right away, e.g. because part files were replaced and the stored header refers to the old ones.
+	 */
+	synchronized void requireFlush() {
+		flushRequired = true;
+	}
+
+	/**
+	 * Commits an operation. Must be called while holding the write lock.
+	 *
+	 * @return true, if the operation was committed.
+	 */
+	boolean commit() {
+		if(mode == DurabilityMode.NONE || mode == DurabilityMode.PER_OPERATION) {
+			if(!syncDirtyParts() || !apFile.writeHeader()) return false;
+
+			synchronized (this) {
+				flushRequired = false;
+			}
+			return true;
+		}
+
+		boolean immediate;
+		synchronized (this) {
+			pending++;
+			immediate = flushRequired || pending >= maxOperations;
+		}
+		if(immediate) return flushLocked();
+
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Writes the collected operations, before their header could refer to data which is about to be overwritten.
+	 * Must be called while holding the write lock.
+	 *
+	 * @return true, if nothing was pending or the operations were written.
+	 */
+	boolean barrier() {
+		return flushLocked();
+	}
+
+	/**
+	 * Writes the operations which were committed, but not written yet.
+	 *
+	 * @return true, if nothing was pending or the operations were written.
+	 */
+	public boolean flush() {
+		apFile.getWriteLock().lock();
+		try {
+			return flushLocked();
+		} finally {
+			apFile.getWriteLock().unlock();
+		}
+	}
+
+	private boolean flushLocked() {
+		synchronized (this) {
+			if(pending <= 0) return true;
+
+			if(scheduled != null) {
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+		}
+
+		if(!syncDirtyParts() || !apFile.writeHeader()) return false;
+
+		synchronized (this) {
+			pending = 0;
+			flushRequired = false;
+		}
+		return true;
+	}
+
+	private synchronized void schedule() {
+		if(scheduled != null) return;
+
+		if(timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "ArchivePart group commit");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+
+		scheduled = timer.schedule(() -> {
+			synchronized (this) {
+				scheduled = null;
+			}
+			if(!flush()) System.err.println("Could not write the header of \"" + apFile.getBaseFile().getAbsolutePath() + "\".");
+		}, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the pending operations and stops the timer of the group commits.
+	 */
+	@Override
+	public void close() {
+		if(!flush()) System.err.println("Could not write the header of \"" + apFile.getBaseFile().getAbsolutePath() + "\".");
+
+		synchronized (this) {
+			if(timer != null) {
+				timer.shutdownNow();
+				timer = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package work.lclpnet.archivepart.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * The entries of an archive by path. Exact lookups are answered by a hash map,
+ * prefix, directory and glob queries by a sorted map, so they only visit the matching range.<br>
+ * <br>
+ * Modifications are done by the writers of the archive only, lookups can be done by any thread.
+ * If there are multiple entries with the same path, the first one added is indexed.
+ * While the archive keeps its entries in a {@link CompactEntryList}, the index is disabled and empty.
+ */
+class EntryIndex implements EntryLookup {
+
+	private final ConcurrentHashMap<String, ArchiveEntry> byPath = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<String, ArchiveEntry> sorted = new ConcurrentSkipListMap<>();
+	private boolean enabled = true;
+
+	/**
+	 * @param enabled False, if the modifications should be ignored. The index is cleared then.
+	 */
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if(!enabled) {
+			byPath.clear();
+			sorted.clear();
+		}
+	}
+
+	void rebuild(Collection<ArchiveEntry> entries) {
+		byPath.clear();
+		sorted.clear();
+		if(enabled) entries.forEach(this::add);
+	}
+
+	void add(ArchiveEntry e) {
+		if(enabled && byPath.putIfAbsent(e.getFile(), e) == null) sorted.put(e.getFile(), e);
+	}
+
+	void remove(ArchiveEntry e) {
+		if(enabled && byPath.remove(e.getFile(), e)) sorted.remove(e.getFile(), e);
+	}
+
+	void replace(ArchiveEntry before, ArchiveEntry after) {
+		if(enabled && byPath.replace(before.getFile(), before, after)) sorted.put(after.getFile(), after);
+	}
+
+	@Override
+	public ArchiveEntry get(String path) {
+		return byPath.get(path);
+	}
+
+	@Override
+	public List<ArchiveEntry> getByPrefix(String prefix) {
+		List<ArchiveEntry> gathered = new ArrayList<>();
+
+		for(Map.Entry<String, ArchiveEntry> e : sorted.tailMap(prefix, true).entrySet()) {
+			if(!e.getKey().startsWith(prefix)) break;
+			gathered.add(e.getValue());
+		}
+
+		return gathered;
+	}
+
+	@Override
+	public boolean hasPrefix(String prefix) {
+		String key = sorted.ceilingKey(prefix);
+		return key != null && key.startsWith(prefix);
+	}
+
+	/**
+	 * Lists the immediate children of a directory. Sub directories are skipped over as a whole,
+	 * so only one lookup per child is needed.
+	 */
+	@Override
+	public List<String> getChildren(String directory) {
+		List<String> children = new ArrayList<>();
+
+		String key = sorted.ceilingKey(directory);
+		while(key != null && key.startsWith(directory)) {
+			int slash = key.indexOf('/', directory.length());
+			if(slash < 0) {
+				children.add(key);
+				key = sorted.higherKey(key);
+			} else {
+				String child = key.substring(0, slash + 1);
+				children.add(child);
+				key = sorted.ceilingKey(key.substring(0, slash) + (char) ('/' + 1));
+			}
+		}
+
+		return children;
+	}
+
+	@Override
+	public List<ArchiveEntry> getByGlob(String glob) {
+		Pattern pattern = Pattern.compile(globToRegex(glob));
+
+		List<ArchiveEntry> gathered = new ArrayList<>();
+		for(ArchiveEntry e : getByPrefix(literalPrefix(glob)))
+			if(pattern.matcher(e.getFile()).matches()) gathered.add(e);
+
+		return gathered;
+	}
+
+	@Override
+	public List<ArchiveEntry> getByPattern(Pattern pattern) {
+		List<ArchiveEntry> gathered = new ArrayList<>();
+		for(ArchiveEntry e : sorted.values())
+			if(pattern.matcher(e.getFile()).matches()) gathered.add(e);
+
+		return gathered;
+	}
+
+	static String literalPrefix(String glob) {
+		for (int i = 0; i < glob.length(); i++)
+			if("*?[{\\".indexOf(glob.charAt(i)) >= 0) return glob.substring(0, i);
+
+		return glob;
+	}
+
+	/**
+	 * Converts a glob to a regular expression.
+	 * <code>*</code> matches within a path segment, <code>**</code> across segments, <code>?</code> a single character.
+	 * Character classes <code>[...]</code> and alternatives <code>{a,b}</code> are supported as well.
+	 */
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int braces = 0;
+
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				if(i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else regex.append("[^/]*");
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			case '[':
+				int end = glob.indexOf(']', i + 1);
+				if(end < 0) {
+					regex.append("\\[");
+					break;
+				}
+				String set = glob.substring(i + 1, end);
+				if(set.startsWith("!")) set = "^" + set.substring(1);
+				regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+				i = end;
+				break;
+			case '{':
+				regex.append("(?:");
+				braces++;
+				break;
+			case '}':
+				if(braces > 0) {
+					regex.append(')');
+					braces--;
+				} else regex.append("\\}");
+				break;
+			case ',':
+				regex.append(braces > 0 ? "|" : ",");
+				break;
+			case '\\':
+				if(i + 1 < glob.length()) regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+				else regex.append("\\\\");
+				break;
+			default:
+				if(".+()^$|".indexOf(c) >= 0) regex.append('\\');
+				regex.append(c);
+				break;
+			}
+		}
+
+		while(braces-- > 0) regex.append(')');
+		return regex.toString();
+	}
+
+}
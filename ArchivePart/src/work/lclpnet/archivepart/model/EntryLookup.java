@@ -0,0 +1,31 @@
+package work.lclpnet.archivepart.model;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Path based queries of the entries of an archive.
+ * If there are multiple entries with the same path, only one of them is returned.
+ */
+interface EntryLookup {
+
+	ArchiveEntry get(String path);
+
+	/**
+	 * @return The entries whose path starts with the prefix, sorted by path.
+	 */
+	List<ArchiveEntry> getByPrefix(String prefix);
+
+	boolean hasPrefix(String prefix);
+
+	/**
+	 * @param directory The path of the directory, ending with a slash.
+	 * @return The sorted paths of the immediate children. Paths of sub directories end with a slash.
+	 */
+	List<String> getChildren(String directory);
+
+	List<ArchiveEntry> getByGlob(String glob);
+
+	List<ArchiveEntry> getByPattern(Pattern pattern);
+
+}
@@ -0,0 +1,652 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The entries of a version 7 or later header, read directly from its bytes.<br>
+ * <br>
+ * The header stores fixed-width records sorted by path and a separate string table with the paths.
+ * The paths are front-coded in blocks of {@value #BLOCK_SIZE}: a path only stores the bytes which differ from the previous one,
+ * except for the first path of a block, which is stored completely.
+ * Lookups binary search the first paths of the blocks and decode at most a few blocks,
+ * so an archive can be opened without creating an {@link ArchiveEntry} for every record.<br>
+ * <br>
+ * Layout: <code>int count, int blockSize, int stringTableLength</code>,
+ * one record per entry <code>(int part, long offset, long length, long checksum, long nonce, long lastModified)</code>,
+ * where the modification time is only stored since version 9,
+ * the position of every block inside the string table as <code>int</code>
+ * and the string table, which holds <code>varint sharedLength, varint suffixLength</code> and the UTF-8 suffix for every path.
+ * The path of a record is the path with the same index in the string table.<br>
+ * <br>
+ * The same format is kept in memory by a {@link CompactEntryList}.
+ */
+public class EntryTable implements EntryLookup {
+
+	public static final int BLOCK_SIZE = 16;
+	private static final int HEADER_SIZE = 12, RECORD_SIZE = 44, RECORD_SIZE_V7 = 36;
+
+	private final ByteBuffer buffer;
+	private final int size, blockSize, recordSize, blocks, recordsStart, blockIndexStart, stringsStart, length;
+	/** The entries created so far, so that every record is represented by one instance only. */
+	private final ConcurrentHashMap<Integer, ArchiveEntry> created = new ConcurrentHashMap<>();
+
+	/**
+	 * @param buffer The encoded table of the current version, starting at position 0. Only absolute reads are used, so the buffer can be shared.
+	 * @throws APParseException If the table is corrupt.
+	 */
+	public EntryTable(ByteBuffer buffer) throws APParseException {
+		this(buffer, true);
+	}
+
+	/**
+	 * @param buffer The encoded table, starting at position 0. Only absolute reads are used, so the buffer can be shared.
+	 * @param modificationTimes True, if the records contain the modification time (version 9 and later).
+	 * @throws APParseException If the table is corrupt.
+	 */
+	public EntryTable(ByteBuffer buffer, boolean modificationTimes) throws APParseException {
+		this.buffer = buffer;
+		this.recordSize = modificationTimes ? RECORD_SIZE : RECORD_SIZE_V7;
+
+		if(buffer.limit() < HEADER_SIZE) throw new APParseException("The entry table is corrupt.");
+		size = buffer.getInt(0);
+		blockSize = buffer.getInt(4);
+		int stringsLength = buffer.getInt(8);
+		if(size < 0 || blockSize < 1 || stringsLength < 0) throw new APParseException("The entry table is corrupt.");
+
+		blocks = (int) ((size + (long) blockSize - 1L) / blockSize);
+		recordsStart = HEADER_SIZE;
+		long blockIndex = recordsStart + (long) size * recordSize;
+		long strings = blockIndex + 4L * blocks;
+		long end = strings + stringsLength;
+		if(end > buffer.limit()) throw new APParseException("The entry table is corrupt.");
+
+		blockIndexStart = (int) blockIndex;
+		stringsStart = (int) strings;
+		length = (int) end;
+	}
+
+	/**
+	 * @return The number of records.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes of the table, data behind it does not belong to it.
+	 */
+	public int getEncodedLength() {
+		return length;
+	}
+
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return True, if the records contain the modification time (version 9 and later).
+	 */
+	boolean hasModificationTimes() {
+		return recordSize == RECORD_SIZE;
+	}
+
+	/**
+	 * @return The highest part number of all records, which is determined without decoding any path.
+	 */
+	public int getHighestPart() {
+		int max = 0;
+		for (int i = 0; i < size; i++)
+			max = Math.max(max, buffer.getInt(recordsStart + i * recordSize));
+
+		return max;
+	}
+
+	/**
+	 * @return All entries, sorted by path.
+	 */
+	public List<ArchiveEntry> readAll() {
+		List<ArchiveEntry> entries = new ArrayList<>(size);
+		Cursor cursor = new Cursor(0);
+		while(cursor.index < size) {
+			cursor.next();
+			entries.add(entry(cursor.index - 1, cursor));
+		}
+		return entries;
+	}
+
+	/**
+	 * @param path The path of the entry.
+	 * @return The first entry with the path, or null if there is none.
+	 */
+	@Override
+	public ArchiveEntry get(String path) {
+		byte[] key = path.getBytes(StandardCharsets.UTF_8);
+		Cursor cursor = seek(key);
+		if(cursor == null || compare(cursor.current, cursor.currentLength, key) != 0) return null;
+
+		return entry(cursor.index - 1, cursor);
+	}
+
+	/**
+	 * @param prefix The path prefix.
+	 * @return The entries whose path starts with the prefix, sorted by path.
+	 */
+	@Override
+	public List<ArchiveEntry> getByPrefix(String prefix) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		List<ArchiveEntry> gathered = new ArrayList<>();
+
+		Cursor cursor = seek(key);
+		while(cursor != null && startsWith(cursor, key)) {
+			gathered.add(entry(cursor.index - 1, cursor));
+			if(cursor.index >= size) break;
+			cursor.next();
+		}
+
+		return gathered;
+	}
+
+	@Override
+	public boolean hasPrefix(String prefix) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		Cursor cursor = seek(key);
+		return cursor != null && startsWith(cursor, key);
+	}
+
+	@Override
+	public List<String> getChildren(String directory) {
+		List<String> children = new ArrayList<>();
+
+		Cursor cursor = seek(directory.getBytes(StandardCharsets.UTF_8));
+		while(cursor != null) {
+			String path = new String(cursor.current, 0, cursor.currentLength, StandardCharsets.UTF_8);
+			if(!path.startsWith(directory)) break;
+
+			//sub directories are skipped over as a whole, by seeking the first path behind them
+			int slash = path.indexOf('/', directory.length());
+			String next;
+			if(slash < 0) {
+				children.add(path);
+				next = path + '\0';
+			} else {
+				children.add(path.substring(0, slash + 1));
+				next = path.substring(0, slash) + (char) ('/' + 1);
+			}
+			cursor = seek(next.getBytes(StandardCharsets.UTF_8));
+		}
+
+		return children;
+	}
+
+	@Override
+	public List<ArchiveEntry> getByGlob(String glob) {
+		Pattern pattern = Pattern.compile(EntryIndex.globToRegex(glob));
+
+		List<ArchiveEntry> gathered = new ArrayList<>();
+		for(ArchiveEntry e : getByPrefix(EntryIndex.literalPrefix(glob)))
+			if(pattern.matcher(e.getFile()).matches()) gathered.add(e);
+
+		return gathered;
+	}
+
+	@Override
+	public List<ArchiveEntry> getByPattern(Pattern pattern) {
+		List<ArchiveEntry> gathered = new ArrayList<>();
+		Cursor cursor = new Cursor(0);
+		while(cursor.index < size) {
+			cursor.next();
+			String path = new String(cursor.current, 0, cursor.currentLength, StandardCharsets.UTF_8);
+			if(pattern.matcher(path).matches()) gathered.add(entry(cursor.index - 1, path));
+		}
+		return gathered;
+	}
+
+	/**
+	 * @return The path of a record.
+	 */
+	String getPath(int index) {
+		Cursor cursor = new Cursor(index / blockSize);
+		while(cursor.index <= index) cursor.next();
+		return new String(cursor.current, 0, cursor.currentLength, StandardCharsets.UTF_8);
+	}
+
+	int getPart(int index) {
+		return buffer.getInt(recordsStart + index * recordSize);
+	}
+
+	long getOffset(int index) {
+		return buffer.getLong(recordsStart + index * recordSize + 4);
+	}
+
+	long getLength(int index) {
+		return buffer.getLong(recordsStart + index * recordSize + 12);
+	}
+
+	long getChecksum(int index) {
+		return buffer.getLong(recordsStart + index * recordSize + 20);
+	}
+
+	long getNonce(int index) {
+		return buffer.getLong(recordsStart + index * recordSize + 28);
+	}
+
+	long getLastModified(int index) {
+		return recordSize == RECORD_SIZE ? buffer.getLong(recordsStart + index * recordSize + 36) : ArchiveEntry.MODIFIED_UNDEFINED;
+	}
+
+	/**
+	 * @return The index of the record with the same values as the entry, or -1 if there is none.
+	 */
+	int indexOf(ArchiveEntry e) {
+		byte[] key = e.getFile().getBytes(StandardCharsets.UTF_8);
+		Cursor cursor = seek(key);
+		while(cursor != null && compare(cursor.current, cursor.currentLength, key) == 0) {
+			int index = cursor.index - 1;
+			if(getPart(index) == e.getPart() && getOffset(index) == e.getOffset() && getLength(index) == e.getLength()
+					&& getChecksum(index) == e.getChecksum() && getNonce(index) == e.getNonce() && getLastModified(index) == e.getLastModified()) return index;
+
+			if(cursor.index >= size) break;
+			cursor.next();
+		}
+		return -1;
+	}
+
+	/**
+	 * Marks the entries created so far as stale, because another representation of the records replaces this table.
+	 */
+	void markCreatedStale() {
+		created.values().forEach(ArchiveEntry::markStale);
+	}
+
+	/**
+	 * Positions a cursor on the first path which is not smaller than the key.
+	 *
+	 * @return The cursor, or null if all paths are smaller.
+	 */
+	private Cursor seek(byte[] key) {
+		if(size == 0) return null;
+
+		//the last block starting with a path smaller than the key; duplicates may begin in front of a block with an equal path
+		int low = 0, high = blocks - 1, block = 0;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			Cursor first = new Cursor(mid);
+			first.next();
+			if(compare(first.current, first.currentLength, key) < 0) {
+				block = mid;
+				low = mid + 1;
+			} else high = mid - 1;
+		}
+
+		Cursor cursor = new Cursor(block);
+		while(cursor.index < size) {
+			cursor.next();
+			if(compare(cursor.current, cursor.currentLength, key) >= 0) return cursor;
+		}
+		return null;
+	}
+
+	private ArchiveEntry entry(int index, Cursor cursor) {
+		ArchiveEntry e = created.get(index);
+		if(e != null) return e;
+
+		return entry(index, new String(cursor.current, 0, cursor.currentLength, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Creates the entry of a record. The entries are cached, so that every record is represented by one instance only.
+	 */
+	ArchiveEntry entry(int index, String path) {
+		ArchiveEntry e = created.get(index);
+		if(e != null) return e;
+
+		e = new ArchiveEntry(path, getPart(index), getOffset(index), getLength(index), getChecksum(index), getNonce(index), getLastModified(index));
+
+		ArchiveEntry present = created.putIfAbsent(index, e);
+		return present != null ? present : e;
+	}
+
+	private static boolean startsWith(Cursor cursor, byte[] prefix) {
+		if(cursor.currentLength < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++)
+			if(cursor.current[i] != prefix[i]) return false;
+
+		return true;
+	}
+
+	/**
+	 * Compares UTF-8 encoded paths by their unsigned bytes, which is the order of the records.
+	 */
+	static int compare(byte[] a, int aLength, byte[] b) {
+		int n = Math.min(aLength, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if(c != 0) return c;
+		}
+		return aLength - b.length;
+	}
+
+	/**
+	 * Decodes the paths of the string table sequentially, starting at a block.
+	 */
+	private class Cursor {
+
+		private int index, position;
+		private byte[] current = new byte[64];
+		private int currentLength = 0;
+
+		private Cursor(int block) {
+			this.index = block * blockSize;
+			this.position = stringsStart + buffer.getInt(blockIndexStart + 4 * block);
+		}
+
+		private void next() {
+			int shared = readVarInt();
+			int suffix = readVarInt();
+
+			int length = shared + suffix;
+			if(length > current.length) current = Arrays.copyOf(current, Math.max(length, current.length * 2));
+			for (int i = 0; i < suffix; i++)
+				current[shared + i] = buffer.get(position++);
+
+			currentLength = length;
+			index++;
+		}
+
+		private int readVarInt() {
+			int value = 0, shift = 0;
+			byte b;
+			do {
+				b = buffer.get(position++);
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+
+	}
+
+	/**
+	 * Merges the kept records of this table with other entries, which are sorted by path.
+	 * The paths of the records are decoded sequentially, blocks without any kept record are skipped.
+	 * Entries with the same path are ordered by their position in the list, like {@link #write(DataOutputStream, Collection)} keeps their order.
+	 *
+	 * @param positions The position in the list plus one for every record, 0 if the record is not kept.
+	 * @param paths The UTF-8 encoded paths of the other entries, sorted.
+	 * @param otherPositions The positions in the list of the other entries, in the order of their paths.
+	 * @return The new order by path: the index of a record, or <code>-(i + 1)</code> for the other entry i.
+	 */
+	int[] merge(int[] positions, byte[][] paths, int[] otherPositions) {
+		int kept = 0;
+		for(int position : positions)
+			if(position > 0) kept++;
+
+		int[] merged = new int[kept + paths.length];
+		int k = 0, j = 0;
+		Cursor cursor = null;
+		for (int record = 0; record < size; record++) {
+			if(positions[record] == 0) continue;
+
+			cursor = advance(cursor, record);
+			while(j < paths.length) {
+				int c = compare(cursor.current, cursor.currentLength, paths[j]);
+				if(c < 0 || (c == 0 && positions[record] - 1 < otherPositions[j])) break;
+
+				merged[k++] = -(j++ + 1);
+			}
+			merged[k++] = record;
+		}
+
+		while(j < paths.length) merged[k++] = -(j++ + 1);
+
+		//records with the same path are in the order of the table, which may differ from the list
+		MergedPaths source = new MergedPaths(merged, paths);
+		int run = 0;
+		for (int i = 0; i < merged.length; i++) {
+			source.next();
+			if(i == 0 || source.length != source.previousLength || source.sharedLength() != source.length) {
+				run = i;
+				continue;
+			}
+
+			for (int l = i; l > run && position(merged[l - 1], positions, otherPositions) > position(merged[l], positions, otherPositions); l--) {
+				int swap = merged[l];
+				merged[l] = merged[l - 1];
+				merged[l - 1] = swap;
+			}
+		}
+		return merged;
+	}
+
+	private static int position(int m, int[] positions, int[] otherPositions) {
+		return m < 0 ? otherPositions[-m - 1] : positions[m] - 1;
+	}
+
+	/**
+	 * Encodes the records of this table merged with other entries, as a table of the current version.
+	 * Neither entries are created for the records nor are their paths sorted again.
+	 *
+	 * @param out The stream to write to.
+	 * @param merged The order by path, see {@link #merge(int[], byte[][], int[])}.
+	 * @param others The other entries, sorted by path.
+	 * @param paths The UTF-8 encoded paths of the other entries.
+	 * @throws IOException If an I/O error occurred.
+	 */
+	void writeMerged(DataOutputStream out, int[] merged, List<ArchiveEntry> others, byte[][] paths) throws IOException {
+		//the length of the string table and the positions of the blocks
+		int[] blockOffsets = new int[(merged.length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		long stringsLength = 0L;
+		MergedPaths source = new MergedPaths(merged, paths);
+		for (int i = 0; i < merged.length; i++) {
+			source.next();
+			if(i % BLOCK_SIZE == 0) blockOffsets[i / BLOCK_SIZE] = (int) stringsLength;
+
+			int shared = i % BLOCK_SIZE == 0 ? 0 : source.sharedLength();
+			stringsLength += varIntLength(shared) + varIntLength(source.length - shared) + source.length - shared;
+			if(stringsLength > Integer.MAX_VALUE) throw new IOException("The paths of the entries are too long for the header.");
+		}
+
+		out.writeInt(merged.length);
+		out.writeInt(BLOCK_SIZE);
+		out.writeInt((int) stringsLength);
+
+		for(int m : merged) {
+			if(m < 0) {
+				ArchiveEntry e = others.get(-m - 1);
+				out.writeInt(e.getPart());
+				out.writeLong(e.getOffset());
+				out.writeLong(e.getLength());
+				out.writeLong(e.getChecksum());
+				out.writeLong(e.getNonce());
+				out.writeLong(e.getLastModified());
+			} else {
+				out.writeInt(getPart(m));
+				out.writeLong(getOffset(m));
+				out.writeLong(getLength(m));
+				out.writeLong(getChecksum(m));
+				out.writeLong(getNonce(m));
+				out.writeLong(getLastModified(m));
+			}
+		}
+
+		for(int offset : blockOffsets) out.writeInt(offset);
+
+		source = new MergedPaths(merged, paths);
+		for (int i = 0; i < merged.length; i++) {
+			source.next();
+			int shared = i % BLOCK_SIZE == 0 ? 0 : source.sharedLength();
+
+			writeVarInt(out, shared);
+			writeVarInt(out, source.length - shared);
+			out.write(source.current, shared, source.length - shared);
+		}
+	}
+
+	/**
+	 * @return A cursor whose current path is the path of the record, which continues the given cursor if the record is not behind its block.
+	 */
+	private Cursor advance(Cursor cursor, int record) {
+		if(cursor == null || record / blockSize > cursor.index / blockSize) cursor = new Cursor(record / blockSize);
+		while(cursor.index <= record) cursor.next();
+		return cursor;
+	}
+
+	/**
+	 * The paths of a merged order, see {@link #merge(int[], byte[][], int[])}, together with the previous path.
+	 */
+	private class MergedPaths {
+
+		private final int[] merged;
+		private final byte[][] paths;
+		private Cursor cursor = null;
+		private int next = 0;
+		private byte[] current = new byte[64], previous = new byte[64];
+		private int length = 0, previousLength = 0;
+
+		private MergedPaths(int[] merged, byte[][] paths) {
+			this.merged = merged;
+			this.paths = paths;
+		}
+
+		private void next() {
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+			previousLength = length;
+
+			int m = merged[next++];
+			byte[] path;
+			if(m < 0) {
+				path = paths[-m - 1];
+				length = path.length;
+			} else {
+				cursor = advance(cursor, m);
+				path = cursor.current;
+				length = cursor.currentLength;
+			}
+
+			if(length > current.length) current = new byte[Math.max(length, current.length * 2)];
+			System.arraycopy(path, 0, current, 0, length);
+		}
+
+		private int sharedLength() {
+			int n = Math.min(length, previousLength), shared = 0;
+			while(shared < n && current[shared] == previous[shared]) shared++;
+			return shared;
+		}
+
+	}
+
+	/**
+	 * Encodes entries as a table of the current version, sorted by path. Entries with the same path keep their order.
+	 * The table is streamed in two passes over the entries, so apart from the sorted order and the block positions,
+	 * no memory depending on the number of entries is needed.
+	 *
+	 * @param out The stream to write to.
+	 * @param entries The entries to encode.
+	 * @throws IOException If an I/O error occurred.
+	 */
+	public static void write(DataOutputStream out, Collection<ArchiveEntry> entries) throws IOException {
+		List<ArchiveEntry> sorted = new ArrayList<>(entries.size());
+		for(ArchiveEntry e : entries)
+			if(e != null) sorted.add(e);
+
+		sorted.sort((a, b) -> comparePaths(a.getFile(), b.getFile()));
+		writeSorted(out, sorted);
+	}
+
+	/**
+	 * Encodes entries which are sorted by path already.
+	 */
+	static void writeSorted(DataOutputStream out, List<ArchiveEntry> sorted) throws IOException {
+		//the length of the string table and the positions of the blocks
+		int[] blockOffsets = new int[(sorted.size() + BLOCK_SIZE - 1) / BLOCK_SIZE];
+		long stringsLength = 0L;
+		byte[] previous = null;
+		for (int i = 0; i < sorted.size(); i++) {
+			byte[] path = sorted.get(i).getFile().getBytes(StandardCharsets.UTF_8);
+			if(i % BLOCK_SIZE == 0) blockOffsets[i / BLOCK_SIZE] = (int) stringsLength;
+
+			int shared = i % BLOCK_SIZE == 0 ? 0 : sharedLength(previous, path);
+			stringsLength += varIntLength(shared) + varIntLength(path.length - shared) + path.length - shared;
+			if(stringsLength > Integer.MAX_VALUE) throw new IOException("The paths of the entries are too long for the header.");
+
+			previous = path;
+		}
+
+		out.writeInt(sorted.size());
+		out.writeInt(BLOCK_SIZE);
+		out.writeInt((int) stringsLength);
+
+		for(ArchiveEntry e : sorted) {
+			out.writeInt(e.getPart());
+			out.writeLong(e.getOffset());
+			out.writeLong(e.getLength());
+			out.writeLong(e.getChecksum());
+			out.writeLong(e.getNonce());
+			out.writeLong(e.getLastModified());
+		}
+
+		for(int offset : blockOffsets) out.writeInt(offset);
+
+		previous = null;
+		for (int i = 0; i < sorted.size(); i++) {
+			byte[] path = sorted.get(i).getFile().getBytes(StandardCharsets.UTF_8);
+			int shared = i % BLOCK_SIZE == 0 ? 0 : sharedLength(previous, path);
+
+			writeVarInt(out, shared);
+			writeVarInt(out, path.length - shared);
+			out.write(path, shared, path.length - shared);
+			previous = path;
+		}
+	}
+
+	/**
+	 * Compares paths in the order of their UTF-8 encoding, which is the order of their code points.
+	 */
+	static int comparePaths(String a, String b) {
+		int n = Math.min(a.length(), b.length());
+		for (int i = 0; i < n; i++) {
+			char x = a.charAt(i), y = b.charAt(i);
+			if(x == y) continue;
+
+			//surrogates encode supplementary characters, which come after all other characters
+			if(Character.isSurrogate(x) != Character.isSurrogate(y)) return Character.isSurrogate(x) ? 1 : -1;
+			return x - y;
+		}
+		return a.length() - b.length();
+	}
+
+	private static int sharedLength(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length), shared = 0;
+		while(shared < n && a[shared] == b[shared]) shared++;
+		return shared;
+	}
+
+	private static int varIntLength(int value) {
+		int length = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+}
@@ -0,0 +1,281 @@
+package work.lclpnet.archivepart.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import work.lclpnet.archivepart.io.PartChannelPool;
+
+/**
+ * The unused byte ranges ("holes") inside the part files of an archive, which are left behind by lazily removed entries.<br>
+ * <br>
+ * Adjacent holes are merged. New entries are placed into the smallest hole they fit in.
+ * A range can be freed with a fence, then it is not allocated while it may still be read through a lease which was acquired before it was freed.
+ * Instances are not thread safe, they are guarded by the write lock of their archive.
+ * Only {@link #isEmpty()}, {@link #getHighestPart()} and {@link #getFreeBytes()} may be called without it, they return the state after the last modification.
+ */
+public class FreeSpaceMap {
+
+	/** Per part: offset -> length */
+	private final TreeMap<Integer, TreeMap<Long, Long>> byPart = new TreeMap<>();
+	private final TreeSet<Hole> bySize = new TreeSet<>((a, b) -> {
+		if(a.length != b.length) return Long.compare(a.length, b.length);
+		if(a.part != b.part) return Integer.compare(a.part, b.part);
+		return Long.compare(a.offset, b.offset);
+	});
+	/** The freed ranges which may still be read, see {@link #free(int, long, long, long)}. */
+	private final List<Fence> fences = new ArrayList<>();
+	/** Records the modifications, if the archive is journaled. */
+	private HeaderJournal journal = null;
+	private volatile int highestPart = 0;
+	private volatile long freeBytes = 0L;
+
+	void setJournal(HeaderJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Marks a range as free.
+	 *
+	 * @param part The part number.
+	 * @param offset The start of the range.
+	 * @param length The length of the range.
+	 */
+	public void free(int part, long offset, long length) {
+		if(length <= 0L) return;
+
+		if(journal != null) journal.recordFree(part, offset, length);
+		add(part, offset, length);
+		update();
+	}
+
+	/**
+	 * Marks a range as free, which is not allocated as long as a lease of the part, which was acquired up to the given sequence number, is open.
+	 *
+	 * @param part The part number.
+	 * @param offset The start of the range.
+	 * @param length The length of the range.
+	 * @param lease The sequence number of the last lease which may still read the range, see {@link PartChannelPool#getLeaseSequence()}.
+	 */
+	public void free(int part, long offset, long length, long lease) {
+		free(part, offset, length);
+		if(length > 0L) fences.add(new Fence(part, offset, length, lease));
+	}
+
+	private void add(int part, long offset, long length) {
+		TreeMap<Long, Long> holes = byPart.computeIfAbsent(part, p -> new TreeMap<>());
+
+		Map.Entry<Long, Long> before = holes.floorEntry(offset);
+		if(before != null && before.getKey() + before.getValue() >= offset) {
+			long end = Math.max(before.getKey() + before.getValue(), offset + length);
+			remove(part, before.getKey(), before.getValue());
+			offset = before.getKey();
+			length = end - offset;
+		}
+
+		Map.Entry<Long, Long> after;
+		while((after = holes.higherEntry(offset)) != null && after.getKey() <= offset + length) {
+			long end = Math.max(after.getKey() + after.getValue(), offset + length);
+			remove(part, after.getKey(), after.getValue());
+			length = end - offset;
+		}
+
+		holes.put(offset, length);
+		bySize.add(new Hole(part, offset, length));
+		freeBytes += length;
+	}
+
+	private void update() {
+		highestPart = byPart.isEmpty() ? 0 : byPart.lastKey();
+	}
+
+	/**
+	 * Takes a range of the given length from the smallest hole which is big enough. Fences are ignored.
+	 *
+	 * @param length The required length.
+	 * @return The allocated range, or null if there is no hole big enough.
+	 */
+	public Hole allocate(long length) {
+		return allocate(length, null);
+	}
+
+	/**
+	 * Takes a range of the given length from the smallest hole which is big enough and does not overlap a range which may still be read.
+	 *
+	 * @param length The required length.
+	 * @param pool The pool whose leases may read fenced ranges, null to ignore the fences.
+	 * @return The allocated range, or null if there is no hole big enough.
+	 */
+	public Hole allocate(long length, PartChannelPool pool) {
+		if(length <= 0L) return null;
+
+		if(pool != null) fences.removeIf(f -> !pool.isLeased(f.part, f.lease));
+
+		for(Hole hole : bySize.tailSet(new Hole(0, Long.MIN_VALUE, length))) {
+			if(pool != null && isFenced(hole.part, hole.offset, length)) continue;
+
+			reserve(hole.part, hole.offset, length);
+			return new Hole(hole.part, hole.offset, length);
+		}
+		return null;
+	}
+
+	private boolean isFenced(int part, long offset, long length) {
+		for(Fence f : fences)
+			if(f.part == part && f.offset < offset + length && offset < f.offset + f.length) return true;
+
+		return false;
+	}
+
+	/**
+	 * Takes a range, which has to lie inside a hole.
+	 *
+	 * @param part The part number.
+	 * @param offset The start of the range.
+	 * @param length The length of the range.
+	 * @return true, if the range was free.
+	 */
+	public boolean reserve(int part, long offset, long length) {
+		TreeMap<Long, Long> holes = byPart.get(part);
+		if(holes == null || length <= 0L) return false;
+
+		Map.Entry<Long, Long> hole = holes.floorEntry(offset);
+		if(hole == null || hole.getKey() + hole.getValue() < offset + length) return false;
+
+		if(journal != null) journal.recordReserve(part, offset, length);
+
+		long start = hole.getKey(), end = hole.getKey() + hole.getValue();
+		remove(part, start, hole.getValue());
+		if(offset > start) add(part, start, offset - start);
+		if(end > offset + length) add(part, offset + length, end - offset - length);
+		if(holes.isEmpty()) byPart.remove(part);
+		update();
+
+		return true;
+	}
+
+	private void remove(int part, long offset, long length) {
+		TreeMap<Long, Long> holes = byPart.get(part);
+		holes.remove(offset);
+		bySize.remove(new Hole(part, offset, length));
+		freeBytes -= length;
+	}
+
+	/**
+	 * Forgets the holes of a part, e.g. because it was compacted.
+	 *
+	 * @param part The part number.
+	 */
+	public void clear(int part) {
+		if(journal != null && byPart.containsKey(part)) journal.recordClear(part);
+
+		TreeMap<Long, Long> holes = byPart.remove(part);
+		if(holes != null) holes.forEach((offset, length) -> {
+			bySize.remove(new Hole(part, offset, length));
+			freeBytes -= length;
+		});
+		fences.removeIf(f -> f.part == part); // the part file was replaced, older leases read the old one
+		update();
+	}
+
+	public void clear() {
+		if(journal != null && !byPart.isEmpty()) journal.recordClearAll();
+
+		byPart.clear();
+		bySize.clear();
+		fences.clear();
+		freeBytes = 0L;
+		update();
+	}
+
+	public boolean isEmpty() {
+		return highestPart == 0;
+	}
+
+	public long getFreeBytes(int part) {
+		TreeMap<Long, Long> holes = byPart.get(part);
+		if(holes == null) return 0L;
+
+		long free = 0L;
+		for(long length : holes.values()) free += length;
+		return free;
+	}
+
+	public long getFreeBytes() {
+		return freeBytes;
+	}
+
+	public int getHighestPart() {
+		return highestPart;
+	}
+
+	/**
+	 * @param part The part number.
+	 * @return The holes of the part, sorted by offset.
+	 */
+	public List<Hole> getHoles(int part) {
+		TreeMap<Long, Long> holes = byPart.get(part);
+		if(holes == null) return Collections.emptyList();
+
+		List<Hole> list = new ArrayList<>(holes.size());
+		holes.forEach((offset, length) -> list.add(new Hole(part, offset, length)));
+		return list;
+	}
+
+	/**
+	 * @return All holes, sorted by part and offset.
+	 */
+	public List<Hole> getHoles() {
+		List<Hole> list = new ArrayList<>(bySize.size());
+		for(int part : byPart.keySet()) list.addAll(getHoles(part));
+		return list;
+	}
+
+	private static class Fence {
+
+		private final int part;
+		private final long offset, length, lease;
+
+		private Fence(int part, long offset, long length, long lease) {
+			this.part = part;
+			this.offset = offset;
+			this.length = length;
+			this.lease = lease;
+		}
+
+	}
+
+	public static class Hole {
+
+		private final int part;
+		private final long offset, length;
+
+		public Hole(int part, long offset, long length) {
+			this.part = part;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int getPart() {
+			return part;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return "Hole{part=" + part + ";offset=" + offset + ";length=" + length + "}";
+		}
+
+	}
+
+}
@@ -0,0 +1,463 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import work.lclpnet.archivepart.ArchivePart;
+import work.lclpnet.archivepart.crypto.StreamCipher;
+
+/**
+ * An append-only sidecar of the header, <code>&lt;header&gt;.journal</code>, which records the modifications of an archive
+ * since the header was written completely the last time (the checkpoint).<br>
+ * <br>
+ * Every header update appends one commit with the records of the modification: added, removed and relocated entries and changes of the {@link FreeSpaceMap}.
+ * A commit is protected by a CRC32 and encrypted like the header, so a torn commit at the end is detected and dropped.
+ * The header is only written completely, once the journal would exceed its maximum number of records or bytes,
+ * or if a modification cannot be journaled, like a new maximum part size.<br>
+ * <br>
+ * The journal starts with the id of the header it belongs to. Every checkpoint writes a header with a new id,
+ * so a journal which was left behind by an interrupted checkpoint is ignored.
+ * The id is derived from the content of the header, so equal archives have equal headers, no matter how they were built.
+ * Journaling is disabled by default, it is enabled by {@link ArchivePartFile#setJournal(int, long)}.
+ */
+public class HeaderJournal {
+
+	/** Version 2 stores the modification times of the entries. */
+	private static final int VERSION = 2;
+	private static final byte ADD = 1, REMOVE = 2, RELOCATE = 3, FREE = 4, RESERVE = 5, CLEAR = 6, CLEAR_ALL = 7, LAZY = 8;
+
+	private final ArchivePartFile apFile;
+	private long id = 0L;
+	private int maxRecords = 0;
+	private long maxBytes = 0L;
+	/** The number of records in the journal file. */
+	private int records = 0;
+	private boolean checkpointRequired = true;
+	/** True while the journal is replayed, then the modifications are not recorded. */
+	private boolean replaying = false;
+	/** The values of the header and the journal file. */
+	private boolean lazyDeletion = false;
+	private long maxPartSize = -1L;
+
+	private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+	private int pendingRecords = 0;
+
+	HeaderJournal(ArchivePartFile apFile) {
+		this.apFile = apFile;
+	}
+
+	public File getFile() {
+		return new File(apFile.getBaseFile().getParentFile(), apFile.getBaseName() + "." + apFile.getExtension() + ".journal");
+	}
+
+	/**
+	 * @return The id of the current header, 0 if it is unknown.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the id of the parsed header.
+	 *
+	 * @param id The id, 0 if the header has none.
+	 */
+	public void setId(long id) {
+		this.id = id;
+		this.checkpointRequired = id == 0L;
+		this.lazyDeletion = apFile.isLazyDeletion();
+		this.maxPartSize = apFile.getMaxPartSize();
+	}
+
+	public boolean isEnabled() {
+		return maxRecords > 0;
+	}
+
+	/**
+	 * @return The number of records in the journal file.
+	 */
+	public int getRecordCount() {
+		return records;
+	}
+
+	void configure(int maxRecords, long maxBytes) {
+		if(maxRecords < 0 || maxBytes < 0L) throw new IllegalArgumentException("The limits of the journal must not be negative.");
+		this.maxRecords = maxRecords;
+		this.maxBytes = maxBytes;
+	}
+
+	void recordAdd(ArchiveEntry e) {
+		if(!begin(ADD)) return;
+		write(() -> writeEntry(e));
+	}
+
+	void recordRemove(ArchiveEntry e) {
+		if(!begin(REMOVE)) return;
+		write(() -> writeEntry(e));
+	}
+
+	void recordRelocate(ArchiveEntry before, ArchiveEntry after) {
+		if(!begin(RELOCATE)) return;
+		write(() -> {
+			writeEntry(before);
+			pending.writeInt(after.getPart());
+			pending.writeLong(after.getOffset());
+			pending.writeLong(after.getLastModified());
+		});
+	}
+
+	void recordFree(int part, long offset, long length) {
+		if(!begin(FREE)) return;
+		write(() -> writeRange(part, offset, length));
+	}
+
+	void recordReserve(int part, long offset, long length) {
+		if(!begin(RESERVE)) return;
+		write(() -> writeRange(part, offset, length));
+	}
+
+	void recordClear(int part) {
+		if(!begin(CLEAR)) return;
+		write(() -> pending.writeInt(part));
+	}
+
+	void recordClearAll() {
+		begin(CLEAR_ALL);
+	}
+
+	/**
+	 * Forces the next header update to be a checkpoint, because the modification cannot be journaled.
+	 */
+	void requireCheckpoint() {
+		checkpointRequired = true;
+	}
+
+	private boolean begin(byte type) {
+		if(replaying) return false;
+		if(!isEnabled()) { // the modification is not journaled, so the journal file does not represent the archive anymore
+			checkpointRequired = true;
+			return false;
+		}
+
+		try {
+			pending.writeByte(type);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // in memory
+		}
+		pendingRecords++;
+		return true;
+	}
+
+	private void write(RecordWriter writer) {
+		try {
+			writer.write();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // in memory
+		}
+	}
+
+	private void writeEntry(ArchiveEntry e) throws IOException {
+		pending.writeUTF(e.getFile());
+		pending.writeInt(e.getPart());
+		pending.writeLong(e.getOffset());
+		pending.writeLong(e.getLength());
+		pending.writeLong(e.getChecksum());
+		pending.writeLong(e.getNonce());
+		pending.writeLong(e.getLastModified());
+	}
+
+	private void writeRange(int part, long offset, long length) throws IOException {
+		pending.writeInt(part);
+		pending.writeLong(offset);
+		pending.writeLong(length);
+	}
+
+	/**
+	 * Appends the pending records as one commit.
+	 *
+	 * @return true, if the records were appended. Otherwise, a checkpoint has to be written.
+	 */
+	boolean append() {
+		if(!isEnabled() || checkpointRequired || id == 0L || apFile.getMaxPartSize() != maxPartSize) return false;
+
+		if(apFile.isLazyDeletion() != lazyDeletion) {
+			begin(LAZY);
+			write(() -> pending.writeBoolean(apFile.isLazyDeletion()));
+		}
+
+		if(pendingRecords <= 0) return true;
+
+		File file = getFile();
+		long length = file.exists() ? file.length() : 0L;
+		if(records + pendingRecords > maxRecords || length + pendingBytes.size() > maxBytes) return false;
+
+		try {
+			byte[] content = pendingBytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, content.length);
+
+			StreamCipher cipher = apFile.getCipher();
+			long nonce = 0L;
+			if(cipher != null) {
+				nonce = cipher.newNonce();
+				cipher.apply(content, 0, content.length, nonce, 0L);
+			}
+
+			FileOutputStream fileOut = new FileOutputStream(file, length > 0L);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+				if(length <= 0L) {
+					out.writeInt(VERSION);
+					out.writeLong(id);
+				}
+
+				out.writeLong(nonce);
+				out.writeInt(content.length);
+				out.write(content);
+				out.writeLong(crc.getValue());
+
+				out.flush();
+				apFile.getDurability().sync(fileOut.getChannel());
+			}
+
+			if(length <= 0L) apFile.getDurability().syncDirectory();
+		} catch (IOException | GeneralSecurityException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		records += pendingRecords;
+		lazyDeletion = apFile.isLazyDeletion();
+		clearPending();
+		return true;
+	}
+
+	/**
+	 * Creates the id of a new header. Until {@link #reset(long)} is called, modifications cannot be journaled.
+	 * The id is derived from the hash of the header content, it is never 0 and always differs from the current id.
+	 *
+	 * @param contentHash The hash of the header content which precedes the id.
+	 * @return The new id.
+	 */
+	public long beginCheckpoint(long contentHash) {
+		long next = contentHash;
+		while(next == 0L || next == id)
+			next = mix(next);
+
+		id = next;
+		checkpointRequired = true;
+		return next;
+	}
+
+	/** The finalizer of SplitMix64, a bijection which scatters equal hashes deterministically. */
+	private static long mix(long z) {
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Starts a new journal after the header was written completely.
+	 *
+	 * @param id The id of the new header.
+	 */
+	void reset(long id) {
+		this.id = id;
+		this.records = 0;
+		this.checkpointRequired = false;
+		this.lazyDeletion = apFile.isLazyDeletion();
+		this.maxPartSize = apFile.getMaxPartSize();
+		clearPending();
+
+		File file = getFile();
+		if(file.exists() && !file.delete()) {
+			System.err.println("Could not delete the journal \"" + file.getAbsolutePath() + "\".");
+			checkpointRequired = true;
+		}
+	}
+
+	private void clearPending() {
+		pendingBytes.reset();
+		pendingRecords = 0;
+	}
+
+	/**
+	 * Applies the journal of the header to the parsed archive.
+	 * A journal of another header is deleted, a torn commit at the end is cut off.
+	 *
+	 * @throws IOException If the journal could not be read.
+	 * @throws GeneralSecurityException If the cipher of the archive could not be created.
+	 */
+	public void replay() throws IOException, GeneralSecurityException {
+		File file = getFile();
+		if(!file.exists()) return;
+
+		List<byte[]> commits = new ArrayList<>();
+		long validLength = 0L;
+		int version;
+		boolean foreign;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			long journalId;
+			try {
+				version = in.readInt();
+				journalId = in.readLong();
+			} catch (EOFException e) {
+				version = 0;
+				journalId = 0L;
+			}
+
+			foreign = version < 1 || version > VERSION || journalId == 0L || journalId != id;
+			if(!foreign) validLength = readCommits(in, file.length(), commits);
+		}
+
+		if(foreign) {
+			ArchivePart.log("Ignoring the journal \"" + file.getName() + "\", which does not belong to the header.");
+			if(!file.delete()) System.err.println("Could not delete the journal \"" + file.getAbsolutePath() + "\".");
+			return;
+		}
+
+		if(validLength < file.length()) {
+			ArchivePart.log("Cutting off an incomplete commit of the journal \"" + file.getName() + "\".");
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(validLength);
+			}
+		}
+
+		apply(commits, version);
+
+		//new commits cannot be appended to a journal of an older version
+		if(version < VERSION) checkpointRequired = true;
+	}
+
+	/**
+	 * Reads the commits behind the start of the journal, until the end or a torn commit.
+	 *
+	 * @return The length of the journal up to the end of the last complete commit.
+	 */
+	private long readCommits(DataInputStream in, long fileLength, List<byte[]> commits) throws IOException, GeneralSecurityException {
+		long validLength = 12L;
+		StreamCipher cipher = apFile.getCipher();
+		while(true) {
+			byte[] content;
+			long crc;
+			try {
+				long nonce = in.readLong();
+				int length = in.readInt();
+				if(length < 0 || validLength + 20L + length > fileLength) break;
+
+				content = new byte[length];
+				in.readFully(content);
+				crc = in.readLong();
+
+				if(cipher != null) cipher.apply(content, 0, length, nonce, 0L);
+			} catch (EOFException e) {
+				break;
+			}
+
+			CRC32 check = new CRC32();
+			check.update(content, 0, content.length);
+			if(check.getValue() != crc) break;
+
+			commits.add(content);
+			validLength += 20L + content.length;
+		}
+		return validLength;
+	}
+
+	private void apply(List<byte[]> commits, int version) throws IOException {
+		if(commits.isEmpty()) return;
+
+		Set<ArchiveEntry> entries = new LinkedHashSet<>(apFile.getEntries());
+		FreeSpaceMap freeSpace = apFile.getFreeSpaceMap();
+		int applied = 0;
+
+		replaying = true;
+		try {
+			applied = apply(commits, version, entries, freeSpace);
+		} finally {
+			replaying = false;
+		}
+
+		apFile.restoreEntries(new ArrayList<>(entries));
+		records = applied;
+		ArchivePart.log("Replayed " + applied + " journal records.");
+	}
+
+	private int apply(List<byte[]> commits, int version, Set<ArchiveEntry> entries, FreeSpaceMap freeSpace) throws IOException {
+		int applied = 0;
+		for(byte[] commit : commits) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(commit));
+			while(in.available() > 0) {
+				byte type = in.readByte();
+				switch (type) {
+				case ADD:
+					entries.add(readEntry(in, version));
+					break;
+				case REMOVE:
+					entries.remove(readEntry(in, version));
+					break;
+				case RELOCATE:
+					ArchiveEntry before = readEntry(in, version);
+					ArchiveEntry after = before.relocate(in.readInt(), in.readLong());
+					if(version >= 2) after = after.withLastModified(in.readLong());
+					if(entries.remove(before)) entries.add(after);
+					break;
+				case FREE:
+					freeSpace.free(in.readInt(), in.readLong(), in.readLong());
+					break;
+				case RESERVE:
+					freeSpace.reserve(in.readInt(), in.readLong(), in.readLong());
+					break;
+				case CLEAR:
+					freeSpace.clear(in.readInt());
+					break;
+				case CLEAR_ALL:
+					freeSpace.clear();
+					break;
+				case LAZY:
+					apFile.setLazyDeletion(in.readBoolean());
+					lazyDeletion = apFile.isLazyDeletion();
+					break;
+				default:
+					throw new IOException("Unknown journal record type " + type + ".");
+				}
+				applied++;
+			}
+		}
+		return applied;
+	}
+
+	private static ArchiveEntry readEntry(DataInputStream in, int version) throws IOException {
+		String file = in.readUTF();
+		int part = in.readInt();
+		long offset = in.readLong();
+		long length = in.readLong();
+		long checksum = in.readLong();
+		long nonce = in.readLong();
+		long lastModified = version >= 2 ? in.readLong() : ArchiveEntry.MODIFIED_UNDEFINED;
+
+		return new ArchiveEntry(file, part, offset, length, checksum, nonce, lastModified);
+	}
+
+	private interface RecordWriter {
+		void write() throws IOException;
+	}
+
+}
@@ -0,0 +1,68 @@
+package work.lclpnet.archivepart.model;
+
+/**
+ * The usage of a part file, see {@link ArchivePartFile#getPartStatistics()}.
+ */
+public class PartStatistics {
+
+	private final int part;
+	private final long size, liveBytes, maxPartSize;
+	private final int entries;
+
+	public PartStatistics(int part, long size, long liveBytes, int entries, long maxPartSize) {
+		this.part = part;
+		this.size = size;
+		this.liveBytes = liveBytes;
+		this.entries = entries;
+		this.maxPartSize = maxPartSize;
+	}
+
+	public int getPart() {
+		return part;
+	}
+
+	/**
+	 * @return The length of the part file.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The number of bytes which belong to entries.
+	 */
+	public long getLiveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return The number of bytes which do not belong to any entry, e.g. holes of removed entries.
+	 */
+	public long getDeadBytes() {
+		return Math.max(0L, size - liveBytes);
+	}
+
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return The share of dead bytes in the part file, from 0 to 1.
+	 */
+	public double getFragmentation() {
+		return size <= 0L ? 0D : getDeadBytes() / (double) size;
+	}
+
+	/**
+	 * @return The share of the maximum part size which is used by entries, from 0 to 1.
+	 */
+	public double getFillLevel() {
+		return maxPartSize <= 0L ? 0D : liveBytes / (double) maxPartSize;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PartStatistics{part=%d;size=%d;live=%d;entries=%d;fragmentation=%.2f;fill=%.2f}", part, size, liveBytes, entries, getFragmentation(), getFillLevel());
+	}
+
+}
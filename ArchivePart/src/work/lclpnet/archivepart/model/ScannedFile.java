@@ -0,0 +1,57 @@
+package work.lclpnet.archivepart.model;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file found by a {@link DirectoryScanner}, with the attributes which were read while walking the directory.
+ */
+public class ScannedFile {
+
+	private final Path file;
+	private final String path;
+	private final long size, lastModified;
+
+	ScannedFile(Path file, String path, BasicFileAttributes attributes) {
+		this.file = file;
+		this.path = path;
+		this.size = attributes.size();
+		this.lastModified = attributes.lastModifiedTime().toMillis();
+	}
+
+	public File getFile() {
+		return file.toFile();
+	}
+
+	public Path getNioPath() {
+		return file;
+	}
+
+	/**
+	 * @return The path of the file inside the archive.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return The size of the file in bytes, when it was scanned.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The modification time of the file in milliseconds since the epoch, when it was scanned.
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return "ScannedFile{path=\"" + path + "\";size=" + size + "}";
+	}
+
+}